@@ -0,0 +1,97 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import cern.colt.list.DoubleArrayList;
+import org.openjdk.jmh.annotations.*;
+import ubic.basecode.math.Distance;
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.expression.experiment.ExperimentalFactor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rank correlations between the p-values of two analyses, as computed by {@link LimmaDiffExCli}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompareBenchmark {
+
+    @Param({ "50000" })
+    public int numProbes;
+
+    private DoubleArrayList a;
+    private DoubleArrayList b;
+
+    private double[] x;
+    private double[] y;
+    private RankCorrelation scratch;
+
+    private LimmaDiffExCli cli;
+    private DifferentialExpressionAnalysis before;
+    private DifferentialExpressionAnalysis after;
+
+    @Setup
+    public void setUp() {
+        SyntheticData data = new SyntheticData( 42 );
+        x = data.uniform( numProbes );
+        y = data.correlated( x, 0.1 );
+        a = new DoubleArrayList( x );
+        b = new DoubleArrayList( y );
+        scratch = new RankCorrelation();
+
+        List<CompositeSequence> probes = data.probes( numProbes );
+        List<ExperimentalFactor> factors = Arrays.asList( data.factor( 2 ), data.factor( 3 ) );
+        before = data.analysis( factors, probes );
+        after = data.analysis( factors, probes );
+        cli = new LimmaDiffExCli();
+    }
+
+    /**
+     * A single correlation between two vectors.
+     */
+    @Benchmark
+    public double spearman() {
+        return Distance.spearmanRankCorrelation( a, b );
+    }
+
+    /**
+     * The same correlation on primitive arrays, with buffers reused between invocations.
+     */
+    @Benchmark
+    public double spearmanPrimitive() {
+        return scratch.spearman( x, y, numProbes );
+    }
+
+    /**
+     * Collecting the p-values of two analyses and correlating them, for two factors and five contrasts.
+     */
+    @Benchmark
+    public List<String> compare() {
+        return cli.compare( before, after, null );
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import org.openjdk.jmh.annotations.*;
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
+import ubic.gemma.model.analysis.expression.diff.ExpressionAnalysisResultSet;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.expression.experiment.ExperimentalFactor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Populating the result table from the analyses of an experiment, as done by the tally() methods of
+ * {@link BatchDiffExCli} and {@link LimmaDiffExCli}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffExResultTableBenchmark {
+
+    private static final int NUM_CONDITIONS = 4;
+
+    @Param({ "50000" })
+    public int numProbes;
+
+    private List<ExperimentalFactor> factors;
+    private DifferentialExpressionAnalysis[] analyses;
+
+    @Setup
+    public void setUp() {
+        SyntheticData data = new SyntheticData( 42 );
+        List<CompositeSequence> probes = data.probes( numProbes );
+        factors = Arrays.asList( data.factor( 2 ), data.factor( 3 ), data.factor( 2 ) );
+        analyses = new DifferentialExpressionAnalysis[NUM_CONDITIONS];
+        for ( int i = 0; i < NUM_CONDITIONS; i++ ) {
+            analyses[i] = data.analysis( factors, probes );
+        }
+    }
+
+    @Benchmark
+    public DiffExResultTable tally() {
+        DiffExResultTable details = new DiffExResultTable( factors, NUM_CONDITIONS, numProbes );
+        for ( int i = 0; i < NUM_CONDITIONS; i++ ) {
+            for ( ExpressionAnalysisResultSet rs : analyses[i].getResultSets() ) {
+                details.add( i, rs, 0.05 );
+            }
+        }
+        return details;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ubic.gemma.model.expression.experiment.ExperimentalFactor;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.expression.experiment.FactorValue;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classification of factor values and formatting of the outcome, as done by
+ * {@link FactorValueCharacteristicAnalysis}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FactorValueClassificationBenchmark {
+
+    @Param({ "1000" })
+    public int numFactorValues;
+
+    private FactorValueCharacteristicAnalysis fvca;
+    private ExpressionExperiment ee;
+    private List<FactorValue> fvs;
+    private List<FactorValueCharacteristicAnalysis.RemappingInfo> remappings;
+
+    private PrintStream stdout;
+
+    @Setup
+    public void setUp() {
+        SyntheticData data = new SyntheticData( 42 );
+        ee = data.experiment();
+        ExperimentalFactor ef = data.factor( 0 );
+        fvs = new ArrayList<>( numFactorValues );
+        for ( int i = 0; i < numFactorValues; i++ ) {
+            // mostly pairs, which have the most rules
+            fvs.add( data.factorValue( ef, i % 4 == 0 ? 3 : 2 ) );
+        }
+        // the classification reports the unresolved cases on the standard output
+        stdout = System.out;
+        System.setOut( new PrintStream( new OutputStream() {
+            @Override
+            public void write( int b ) {
+            }
+        } ) );
+
+        fvca = new FactorValueCharacteristicAnalysis();
+        remappings = new ArrayList<>();
+        List<FactorValueCharacteristicAnalysis.RemappingInfo> unresolved = new ArrayList<>();
+        for ( FactorValue fv : fvs ) {
+            remappings.add( fvca.new RemappingInfo( ee, fv ) );
+        }
+        for ( FactorValue fv : fvs ) {
+            fvca.classify( ee, fv, remappings, unresolved );
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut( stdout );
+    }
+
+    @Benchmark
+    public void classify( Blackhole bh ) {
+        List<FactorValueCharacteristicAnalysis.RemappingInfo> results = new ArrayList<>();
+        List<FactorValueCharacteristicAnalysis.RemappingInfo> unresolved = new ArrayList<>();
+        for ( FactorValue fv : fvs ) {
+            fvca.classify( ee, fv, results, unresolved );
+        }
+        bh.consume( results );
+        bh.consume( unresolved );
+    }
+
+    /**
+     * Formatting of both resolved and unresolved remappings.
+     */
+    @Benchmark
+    public void tabularize( Blackhole bh ) {
+        for ( FactorValueCharacteristicAnalysis.RemappingInfo ri : remappings ) {
+            bh.consume( ri.tabularize() );
+        }
+    }
+}
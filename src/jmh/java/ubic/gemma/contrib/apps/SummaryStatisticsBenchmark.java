@@ -0,0 +1,90 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Occurrence counts of genes and pairs of genes over experiments, as done by {@link SummaryStatisticsCli}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SummaryStatisticsBenchmark {
+
+    private static final int NUM_EXPERIMENTS = 500;
+
+    @Param({ "20000" })
+    public int numProbes;
+
+    @Param({ "15000" })
+    public int numGenes;
+
+    /**
+     * Raw summary of the platform of each experiment.
+     */
+    private List<Collection<Object[]>> rawSummaries;
+
+    private GeneSets geneSets;
+
+    @Setup
+    public void setUp() {
+        SyntheticData data = new SyntheticData( 42 );
+        rawSummaries = new ArrayList<>( NUM_EXPERIMENTS );
+        Map<Long, long[]> genes = new HashMap<>();
+        for ( int i = 0; i < NUM_EXPERIMENTS; i++ ) {
+            Collection<Object[]> rawSummary = data.rawSummary( numProbes, numGenes );
+            rawSummaries.add( rawSummary );
+            genes.put( ( long ) i, SummaryStatisticsCli.geneIds( rawSummary ) );
+        }
+        geneSets = GeneSets.of( genes );
+    }
+
+    /**
+     * Building the gene sets from the raw summaries of the platforms.
+     */
+    @Benchmark
+    public GeneSets geneSets() {
+        Map<Long, long[]> genes = new HashMap<>();
+        for ( int i = 0; i < rawSummaries.size(); i++ ) {
+            genes.put( ( long ) i, SummaryStatisticsCli.geneIds( rawSummaries.get( i ) ) );
+        }
+        return GeneSets.of( genes );
+    }
+
+    @Benchmark
+    public int[] geneOccurrences() {
+        return geneSets.occurrenceCounts();
+    }
+
+    /**
+     * Histogram of the co-occurrences of all the pairs of genes, on a single thread.
+     */
+    @Benchmark
+    public long[] genePairOccurrences() throws InterruptedException {
+        return geneSets.pairOccurrenceHistogram( 1 );
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import ubic.gemma.model.analysis.expression.diff.ContrastResult;
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysisResult;
+import ubic.gemma.model.analysis.expression.diff.ExpressionAnalysisResultSet;
+import ubic.gemma.model.common.description.Characteristic;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.expression.experiment.ExperimentalFactor;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.expression.experiment.FactorValue;
+import ubic.gemma.model.expression.experiment.Statement;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Generators of entities for the benchmarks, so that they can run without a database.
+ * <p>
+ * All the generators are deterministic for a given seed.
+ */
+class SyntheticData {
+
+    /**
+     * Category, value and value URI (null for free text) of the characteristics factor values are drawn from; the
+     * mix is meant to exercise most branches of the factor value classification.
+     */
+    private static final String[][] CHARACTERISTICS = {
+            { "treatment", "cisplatin", "http://purl.obolibrary.org/obo/CHEBI_27899" },
+            { "treatment", "lipopolysaccharide", "http://purl.obolibrary.org/obo/CHEBI_16412" },
+            { "treatment", "reference substance role", "http://purl.obolibrary.org/obo/CHEBI_72571" },
+            { "treatment", "siRNA knockdown", null },
+            { "dose", "10 mg/kg", null },
+            { "dose", "1 uM", null },
+            { "timepoint", "24 h", "http://www.ebi.ac.uk/efo/EFO_0000724" },
+            { "timepoint", "day 7", null },
+            { "genotype", "wild type genotype", "http://www.ebi.ac.uk/efo/EFO_0005168" },
+            { "genotype", "TP53", "http://purl.org/commons/record/ncbi_gene/7157" },
+            { "genotype", "homozygous", "http://purl.obolibrary.org/obo/GENO_0000136" },
+            { "disease", "breast carcinoma", "http://purl.obolibrary.org/obo/MONDO_0004989" },
+            { "disease", "reference subject role", "http://purl.obolibrary.org/obo/OBI_0000220" },
+            { "disease staging", "stage III", "http://www.ebi.ac.uk/efo/EFO_0000480" },
+            { "organism part", "kidney", "http://purl.obolibrary.org/obo/UBERON_0002113" },
+            { "organism part", "liver", "http://purl.obolibrary.org/obo/UBERON_0002107" },
+            { "cell type", "hepatocyte", "http://purl.obolibrary.org/obo/CL_0000182" },
+            { "developmental stage", "adult", "http://www.ebi.ac.uk/efo/EFO_0001272" },
+            { "delivery", "intraperitoneal injection", "http://www.ebi.ac.uk/efo/EFO_0002690" },
+            { "phenotype", "increased body weight", "http://purl.obolibrary.org/obo/MP_0001260" },
+            { "growth condition", "hypoxia", "http://www.ebi.ac.uk/efo/EFO_0000713" },
+            { "strain", "C57BL/6", "http://www.ebi.ac.uk/efo/EFO_0000606" },
+            { "age", "8 weeks", null },
+            { "behavior", "social isolation", null },
+    };
+
+    private final Random random;
+    private long nextId = 1;
+
+    SyntheticData( long seed ) {
+        this.random = new Random( seed );
+    }
+
+    ExpressionExperiment experiment() {
+        ExpressionExperiment ee = ExpressionExperiment.Factory.newInstance();
+        ee.setId( nextId++ );
+        ee.setShortName( "GSE" + ee.getId() );
+        ee.setName( "Synthetic experiment " + ee.getId() );
+        return ee;
+    }
+
+    List<CompositeSequence> probes( int n ) {
+        List<CompositeSequence> probes = new ArrayList<>( n );
+        for ( int i = 0; i < n; i++ ) {
+            CompositeSequence cs = CompositeSequence.Factory.newInstance();
+            cs.setId( nextId++ );
+            cs.setName( "probe" + cs.getId() );
+            probes.add( cs );
+        }
+        return probes;
+    }
+
+    /**
+     * @param numValues number of factor values of the factor
+     */
+    ExperimentalFactor factor( int numValues ) {
+        ExperimentalFactor ef = ExperimentalFactor.Factory.newInstance();
+        ef.setId( nextId++ );
+        ef.setName( "factor" + ef.getId() );
+        Set<FactorValue> fvs = new HashSet<>();
+        for ( int i = 0; i < numValues; i++ ) {
+            fvs.add( factorValue( ef, 1 ) );
+        }
+        ef.setFactorValues( fvs );
+        return ef;
+    }
+
+    /**
+     * @param numCharacteristics number of characteristics of the factor value, drawn at random
+     */
+    FactorValue factorValue( ExperimentalFactor ef, int numCharacteristics ) {
+        FactorValue fv = FactorValue.Factory.newInstance( ef );
+        fv.setId( nextId++ );
+        Set<Statement> cs = new HashSet<>();
+        for ( int i = 0; i < numCharacteristics; i++ ) {
+            cs.add( statement() );
+        }
+        fv.setCharacteristics( cs );
+        return fv;
+    }
+
+    Statement statement() {
+        String[] c = CHARACTERISTICS[random.nextInt( CHARACTERISTICS.length )];
+        Statement s = new Statement();
+        s.setId( nextId++ );
+        s.setCategory( c[0] );
+        s.setValue( c[1] );
+        s.setValueUri( c[2] );
+        return s;
+    }
+
+    /**
+     * An analysis with one result set per factor and a result for each probe. A small fraction of the results have no
+     * p-values, as happens for probes that could not be fitted.
+     */
+    DifferentialExpressionAnalysis analysis( List<ExperimentalFactor> factors, List<CompositeSequence> probes ) {
+        DifferentialExpressionAnalysis analysis = DifferentialExpressionAnalysis.Factory.newInstance();
+        analysis.setId( nextId++ );
+        Set<ExpressionAnalysisResultSet> resultSets = new HashSet<>();
+        for ( ExperimentalFactor ef : factors ) {
+            ExpressionAnalysisResultSet rs = new ExpressionAnalysisResultSet();
+            rs.setId( nextId++ );
+            rs.setAnalysis( analysis );
+            rs.setExperimentalFactors( Collections.singleton( ef ) );
+            Set<DifferentialExpressionAnalysisResult> results = new HashSet<>();
+            for ( CompositeSequence probe : probes ) {
+                DifferentialExpressionAnalysisResult r = DifferentialExpressionAnalysisResult.Factory.newInstance();
+                r.setId( nextId++ );
+                r.setProbe( probe );
+                r.setResultSet( rs );
+                if ( random.nextInt( 100 ) > 0 ) {
+                    double p = random.nextDouble();
+                    r.setPvalue( p );
+                    r.setCorrectedPvalue( Math.min( 1.0, p * 2 ) );
+                }
+                Set<ContrastResult> contrasts = new HashSet<>();
+                for ( FactorValue fv : ef.getFactorValues() ) {
+                    ContrastResult cr = ContrastResult.Factory.newInstance();
+                    cr.setId( nextId++ );
+                    cr.setFactorValue( fv );
+                    cr.setPvalue( random.nextDouble() );
+                    contrasts.add( cr );
+                }
+                r.setContrasts( contrasts );
+                results.add( r );
+            }
+            rs.setResults( results );
+            resultSets.add( rs );
+        }
+        analysis.setResultSets( resultSets );
+        return analysis;
+    }
+
+    /**
+     * Rows shaped like those of {@link ubic.gemma.persistence.service.expression.designElement.CompositeSequenceService#getRawSummary},
+     * where only the gene ID (column 10) is filled in; about a tenth of the probes have no gene.
+     *
+     * @param numGenes size of the pool of gene IDs
+     */
+    Collection<Object[]> rawSummary( int numProbes, int numGenes ) {
+        List<Object[]> rows = new ArrayList<>( numProbes );
+        for ( int i = 0; i < numProbes; i++ ) {
+            Object[] row = new Object[11];
+            if ( random.nextInt( 10 ) > 0 ) {
+                row[10] = BigInteger.valueOf( 1 + random.nextInt( numGenes ) );
+            }
+            rows.add( row );
+        }
+        return rows;
+    }
+
+    double[] uniform( int n ) {
+        double[] x = new double[n];
+        for ( int i = 0; i < n; i++ ) {
+            x[i] = random.nextDouble();
+        }
+        return x;
+    }
+
+    /**
+     * Values correlated with the given ones, with a few ties and missing values thrown in.
+     */
+    double[] correlated( double[] x, double noise ) {
+        double[] y = new double[x.length];
+        for ( int i = 0; i < x.length; i++ ) {
+            int r = random.nextInt( 1000 );
+            if ( r == 0 ) {
+                y[i] = Double.NaN;
+            } else if ( r < 10 ) {
+                y[i] = 1.0;
+            } else {
+                y[i] = x[i] + noise * random.nextGaussian();
+            }
+        }
+        return y;
+    }
+}
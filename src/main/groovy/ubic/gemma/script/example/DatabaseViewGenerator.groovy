@@ -19,6 +19,7 @@
 package ubic.gemma.script.example
 
 import org.apache.commons.lang3.StringUtils
+import ubic.gemma.contrib.apps.GeneAnnotationCache
 import ubic.gemma.core.config.Settings
 import ubic.gemma.model.analysis.expression.diff.ContrastResult
 import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis
@@ -28,12 +29,13 @@ import ubic.gemma.model.expression.designElement.CompositeSequence
 import ubic.gemma.model.expression.experiment.ExperimentalFactor
 import ubic.gemma.model.expression.experiment.ExpressionExperiment
 import ubic.gemma.model.expression.experiment.FactorValue
-import ubic.gemma.model.genome.Gene
 import ubic.gemma.persistence.service.analysis.expression.diff.DifferentialExpressionAnalysisService
 import ubic.gemma.persistence.service.analysis.expression.diff.DifferentialExpressionResultService
+import ubic.gemma.persistence.service.expression.arrayDesign.ArrayDesignService
 import ubic.gemma.persistence.service.expression.designElement.CompositeSequenceService
 import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentService
 
+import java.nio.file.Paths
 import java.util.zip.GZIPOutputStream
 
 /**
@@ -44,6 +46,7 @@ differentialExpressionResultService = sx.getBean(DifferentialExpressionResultSer
 differentialExpressionAnalysisService = sx.getBean(DifferentialExpressionAnalysisService.class)
 compositeSequenceService = sx.getBean(CompositeSequenceService.class)
 expressionExperimentService = sx.getBean(ExpressionExperimentService.class)
+arrayDesignService = sx.getBean(ArrayDesignService.class)
 
 //TODO Change me
 //limit = 4
@@ -56,6 +59,10 @@ DATASET_DIFFEX_VIEW_BASENAME = "DatasetDiffEx"
 VIEW_DIR = Settings.getString("gemma.appdata.home") + File.separatorChar + "dataFiles" + File.separatorChar
 VIEW_FILE_SUFFIX = ".view.txt.gz"
 
+// probe to gene annotations, shared with the contrib CLIs
+annotationCache = new GeneAnnotationCache(Paths.get(Settings.getString("gemma.appdata.home"), "annotationCache"),
+        arrayDesignService, compositeSequenceService)
+
 /**
  * @param datasetDiffexViewBasename
  * @return
@@ -79,23 +86,26 @@ File getOutputFile(String filename) {
 
 /**
  * @param probeAnalysisResult
+ * @param annotations annotations of the platforms used by the experiment
  * @return
  */
 private String formatDiffExResult(ExpressionExperiment ee,
                                   DifferentialExpressionAnalysisResult probeAnalysisResult, String factorName, String factorURI,
-                                  String baselineDescription) {
+                                  String baselineDescription, List<GeneAnnotationCache.PlatformAnnotations> annotations) {
 
     CompositeSequence cs = probeAnalysisResult.getProbe()
 
-    Collection<Gene> genes = compositeSequenceService.getGenes(cs)
+    GeneAnnotationCache.PlatformAnnotations pa = annotations.find { it.indexOf(cs.getId()) >= 0 }
+    if (pa == null) return null
+    int k = pa.indexOf(cs.getId())
 
-    if (genes.isEmpty() || genes.size() > 1) {
+    if (pa.getNumGenes(k) != 1) {
         return null
     }
 
-    Gene g = genes.iterator().next()
+    Integer ncbiGeneId = pa.getNcbiGeneId(k, 0)
 
-    if (g.getNcbiGeneId() == null) return null
+    if (ncbiGeneId == null) return null
 
     Collection<ContrastResult> contrasts = probeAnalysisResult.getContrasts()
 
@@ -111,8 +121,8 @@ private String formatDiffExResult(ExpressionExperiment ee,
         } catch (Exception e) {
             e.printStackTrace()
         }
-        String formatted = String.format("%d\t%s\t%s\t%d\t%s\t%s\t%s\t%s\t%s\n", ee.getId(), ee.getShortName(), g
-                .getNcbiGeneId().toString(), g.getId(), factorName, factorURI, baselineDescription,
+        String formatted = String.format("%d\t%s\t%s\t%d\t%s\t%s\t%s\t%s\t%s\n", ee.getId(), ee.getShortName(),
+                ncbiGeneId.toString(), pa.getGeneId(k, 0), factorName, factorURI, baselineDescription,
                 factorValueDescription, direction)
         buf.append(formatted)
     }
@@ -158,6 +168,8 @@ for (ExpressionExperiment ee : experiments) {
     System.out.println("Processing: " + ee.getShortName())
 
     try {
+        List<GeneAnnotationCache.PlatformAnnotations> annotations = annotationCache.get(expressionExperimentService.getArrayDesignsUsed(ee))
+
         for (DifferentialExpressionAnalysis analysis : results) {
 
             // this might take a while ...
@@ -208,7 +220,7 @@ for (ExpressionExperiment ee : experiments) {
 
                     if (dear.getCorrectedPvalue() == null || dear.getCorrectedPvalue() > THRESH_HOLD) continue
 
-                    String formatted = formatDiffExResult(ee, dear, factorName, factorURI, baselineDescription)
+                    String formatted = formatDiffExResult(ee, dear, factorName, factorURI, baselineDescription, annotations)
 
                     if (StringUtils.isNotBlank(formatted) && !formatted.equals(lastFormatted)) writer.write(formatted)
                     lastFormatted = formatted
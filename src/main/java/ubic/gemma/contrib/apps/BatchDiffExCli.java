@@ -19,8 +19,13 @@
 
 package ubic.gemma.contrib.apps;
 
-import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
 import ubic.gemma.apps.DifferentialExpressionAnalysisCli;
 import ubic.gemma.core.analysis.expression.diff.DiffExAnalyzer;
 import ubic.gemma.core.analysis.expression.diff.DifferentialExpressionAnalysisConfig;
@@ -28,25 +33,31 @@ import ubic.gemma.core.analysis.preprocess.batcheffects.ExpressionExperimentBatc
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
 import ubic.gemma.core.datastructure.matrix.io.MatrixWriter;
 import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
-import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysisResult;
 import ubic.gemma.model.analysis.expression.diff.ExpressionAnalysisResultSet;
-import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
 import ubic.gemma.model.expression.bioAssayData.ProcessedExpressionDataVector;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
 import ubic.gemma.model.expression.experiment.ExperimentalFactor;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
-import ubic.gemma.model.genome.Gene;
 import ubic.gemma.persistence.service.expression.arrayDesign.ArrayDesignService;
 import ubic.gemma.persistence.service.expression.bioAssayData.ProcessedExpressionDataVectorService;
 import ubic.gemma.persistence.service.expression.designElement.CompositeSequenceService;
-import ubic.gemma.persistence.util.IdentifiableUtils;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Performs multiple differential expression analyses under different conditions: Without including a batch covariate;
@@ -57,13 +68,24 @@ import java.util.stream.Collectors;
  */
 public class BatchDiffExCli extends DifferentialExpressionAnalysisCli {
 
-    private static final int LOGGING_FREQ = 20000;
+    /*
+     * Analyses whose results are kept in the detail table.
+     */
+    private static final int BEFORE = 0;
+    private static final int BATCH = 1;
+    private static final int BATCH_AFTER_CORR = 2;
+    private static final int AFTER = 3;
 
     /**
      * This only affects the summaries that are output.
      */
     private static final double SUMMARY_QVAL_THRESHOLD = 0.01;
 
+    /**
+     * Enough for a few dozen typical platforms.
+     */
+    private static final long DEFAULT_MAX_CACHED_PROBES = 2_000_000L;
+
     @Autowired
     private ExpressionExperimentBatchCorrectionService expressionExperimentBatchCorrectionService;
     @Autowired
@@ -75,10 +97,64 @@ public class BatchDiffExCli extends DifferentialExpressionAnalysisCli {
     @Autowired
     private ProcessedExpressionDataVectorService processedExpressionDataVectorService;
 
-    private final Collection<ArrayDesign> seenArrays = new HashSet<>();
-    private final Map<CompositeSequence, Collection<Gene>> genes = new HashMap<>();
+    @Value("${gemma.appdata.home}")
+    private Path appDataHome;
+
+    /**
+     * Directory of the gene annotation cache, defaults to annotationCache under the application data directory.
+     */
+    private Path annotationCacheDir;
+    /**
+     * Total number of probes of the platforms whose annotations are kept in memory.
+     */
+    private long maxCachedProbes = DEFAULT_MAX_CACHED_PROBES;
+    private GeneAnnotationCache annotationCache;
     private Writer summaryFile;
 
+    /**
+     * If true, experiments recorded in the journal of a previous run are skipped and the summary is appended to.
+     */
+    private boolean resume = false;
+    private Journal journal;
+
+    /**
+     * File where the time spent in each stage is written, if any.
+     */
+    private Path metricsFile;
+    private StageMetrics metrics;
+
+    /**
+     * Number of experiments processed concurrently.
+     */
+    private int numThreads = 1;
+    private ExecutorService executor;
+
+    /**
+     * Experiments queued on the worker pool that are not known to be finished.
+     */
+    private final Map<ExpressionExperiment, Future<?>> pendingExperiments = new LinkedHashMap<>();
+
+    /**
+     * Outcomes of the experiments, reported by the thread running the CLI since the CLI does not expect its success
+     * and error objects to be added from other threads.
+     */
+    private final Queue<Runnable> pendingReports = new ConcurrentLinkedQueue<>();
+
+    /**
+     * If true, the independent model fits and ComBat of an experiment are run concurrently, on a pool shared by all
+     * experiments. The pool has up to three threads per experiment processed at once, but never more than the number
+     * of processors: each fit is CPU-bound and holds its own copy of the data.
+     */
+    private boolean parallelFits = false;
+    private ExecutorService fitExecutor;
+
+    /**
+     * Format of the original and corrected data files: "text", "binary" or "binary.gz".
+     *
+     * @see BinaryMatrixFile
+     */
+    private String dataFormat = "text";
+
     @Override
     public String getCommandName() {
         return "batchDiffEx";
@@ -90,40 +166,212 @@ public class BatchDiffExCli extends DifferentialExpressionAnalysisCli {
                 + "with including it; and repeating those, after batch correction";
     }
 
+    @Override
+    protected void buildExperimentOptions( Options options ) {
+        super.buildExperimentOptions( options );
+        options.addOption( Option.builder( "threads" ).hasArg().argName( "numThreads" )
+                .desc( "Number of experiments to process concurrently (default 1)" ).build() );
+        options.addOption( "parallelFits", false,
+                "Run the model fits and ComBat of each experiment concurrently where they do not depend on each other; "
+                        + "at most as many run at once as there are processors" );
+        options.addOption( Option.builder( "dataFormat" ).hasArg().argName( "format" )
+                .desc( "Format of the original and corrected data files: text (default), binary or binary.gz; "
+                        + "binary files can be read back with BinaryMatrixFile" ).build() );
+        options.addOption( Option.builder( "annotationCache" ).hasArg().argName( "dir" )
+                .desc( "Directory where probe to gene annotations are cached between runs "
+                        + "(default: annotationCache under the application data directory)" ).build() );
+        options.addOption( Option.builder( "maxCachedProbes" ).hasArg().argName( "numProbes" )
+                .desc( "Total number of probes of the platforms whose annotations are kept in memory; least recently "
+                        + "used platforms are released beyond that (default " + DEFAULT_MAX_CACHED_PROBES + ")" )
+                .build() );
+        options.addOption( Option.builder( "resume" ).longOpt( "resume" )
+                .desc( "Skip the experiments completed by a previous run, as recorded in batch.proc.journal.txt, "
+                        + "and append to its summary file" ).build() );
+        options.addOption( Option.builder( "metrics" ).hasArg().argName( "file" )
+                .desc( "Write the wall time, CPU time and allocated bytes of each stage of each experiment to a file "
+                        + "as JSON lines; a summary is logged at the end of the run regardless" ).build() );
+    }
+
+    @Override
+    protected void processExperimentOptions( CommandLine commandLine ) {
+        super.processExperimentOptions( commandLine );
+        if ( commandLine.hasOption( "threads" ) ) {
+            this.numThreads = Integer.parseInt( commandLine.getOptionValue( "threads" ) );
+            if ( this.numThreads < 1 ) {
+                throw new IllegalArgumentException( "Number of threads must be at least 1" );
+            }
+        }
+        this.parallelFits = commandLine.hasOption( "parallelFits" );
+        if ( commandLine.hasOption( "dataFormat" ) ) {
+            this.dataFormat = commandLine.getOptionValue( "dataFormat" );
+            if ( !Arrays.asList( "text", "binary", "binary.gz" ).contains( this.dataFormat ) ) {
+                throw new IllegalArgumentException( "Unknown data format: " + this.dataFormat );
+            }
+        }
+        if ( commandLine.hasOption( "annotationCache" ) ) {
+            this.annotationCacheDir = Paths.get( commandLine.getOptionValue( "annotationCache" ) );
+        }
+        this.resume = commandLine.hasOption( "resume" );
+        if ( commandLine.hasOption( "metrics" ) ) {
+            this.metricsFile = Paths.get( commandLine.getOptionValue( "metrics" ) );
+        }
+        if ( commandLine.hasOption( "maxCachedProbes" ) ) {
+            this.maxCachedProbes = Long.parseLong( commandLine.getOptionValue( "maxCachedProbes" ) );
+            if ( this.maxCachedProbes < 1 ) {
+                throw new IllegalArgumentException( "Maximum number of cached probes must be at least 1" );
+            }
+        }
+    }
+
     @Override
     protected void doAuthenticatedWork() throws Exception {
-        try ( Writer summaryFile = initOutputFile( "batch.proc.summary.txt" ) ) {
-            summaryFile.write( "State\tEEID\tEENAME\tEFID\tEFNAME\tNUM\tNUMDIFF\n" );
+        annotationCache = new GeneAnnotationCache(
+                annotationCacheDir != null ? annotationCacheDir : appDataHome.resolve( "annotationCache" ),
+                maxCachedProbes, arrayDesignService, compositeSequenceService );
+        try ( Journal journal = new Journal( Paths.get( "batch.proc.journal.txt" ), resume );
+                StageMetrics metrics = new StageMetrics( metricsFile );
+                Writer summaryFile = initSummaryFile( journal, "batch.proc.summary.txt",
+                        "State\tEEID\tEENAME\tEFID\tEFNAME\tNUM\tNUMDIFF\n" ) ) {
+            this.journal = journal;
+            this.metrics = metrics;
             this.summaryFile = summaryFile;
-            super.doAuthenticatedWork();
+            if ( numThreads > 1 ) {
+                log.info( "Processing up to " + numThreads + " experiments concurrently" );
+                // workers need the authentication of the thread running the CLI
+                executor = new DelegatingSecurityContextExecutorService( Executors.newFixedThreadPool( numThreads,
+                        new BasicThreadFactory.Builder().namingPattern( "batchDiffEx-%d" ).build() ) );
+            }
+            if ( parallelFits ) {
+                // at most three stages of a given experiment are runnable at once, and they never wait on each other,
+                // so any pool size is free of deadlocks
+                int numFitThreads = Math.min( 3 * numThreads, Runtime.getRuntime().availableProcessors() );
+                log.info( "Running up to " + numFitThreads + " fits concurrently" );
+                fitExecutor = new DelegatingSecurityContextExecutorService( Executors.newFixedThreadPool( numFitThreads,
+                        new BasicThreadFactory.Builder().namingPattern( "batchDiffEx-fit-%d" ).build() ) );
+            }
+            try {
+                super.doAuthenticatedWork();
+            } finally {
+                try {
+                    awaitPendingExperiments();
+                } finally {
+                    if ( fitExecutor != null ) {
+                        fitExecutor.shutdownNow();
+                        fitExecutor = null;
+                    }
+                    log.info( String.format( "Gene annotation cache: %d hits, %d misses, %d evictions",
+                            annotationCache.getHitCount(), annotationCache.getMissCount(),
+                            annotationCache.getEvictionCount() ) );
+                    log.info( "Time spent per stage of the completed experiments:\n" + metrics.summarize() );
+                }
+            }
         } finally {
             this.summaryFile = null;
+            this.journal = null;
+            this.metrics = null;
         }
     }
 
+    /**
+     * Experiments are queued on the worker pool if one is configured, otherwise they are processed immediately.
+     */
     @Override
     protected void processExpressionExperiment( ExpressionExperiment ee ) {
+        if ( journal.isCompleted( ee.getId() ) ) {
+            log.info( "Skipping " + ee + ", it was completed by a previous run" );
+            addSuccessObject( ee, "Completed by a previous run" );
+            return;
+        }
+        if ( executor != null ) {
+            pendingExperiments.put( ee, executor.submit( () -> analyzeExperiment( ee ) ) );
+        } else {
+            analyzeExperiment( ee );
+        }
+        reportFinishedExperiments();
+    }
+
+    private void reportSuccess( ExpressionExperiment ee, String message ) {
+        pendingReports.add( () -> addSuccessObject( ee, message ) );
+    }
+
+    private void reportError( ExpressionExperiment ee, String message ) {
+        pendingReports.add( () -> addErrorObject( ee, message ) );
+    }
+
+    /**
+     * Report the outcomes of the experiments finished so far. Failures that escaped the processing of an experiment,
+     * such as an {@link Error} on a worker, are reported as errors. This must only be called by the thread running
+     * the CLI.
+     */
+    private void reportFinishedExperiments() {
+        for ( Iterator<Map.Entry<ExpressionExperiment, Future<?>>> it = pendingExperiments.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<ExpressionExperiment, Future<?>> e = it.next();
+            if ( !e.getValue().isDone() ) {
+                continue;
+            }
+            it.remove();
+            try {
+                e.getValue().get();
+            } catch ( ExecutionException ex ) {
+                log.error( "Processing of " + e.getKey() + " failed", ex.getCause() );
+                reportError( e.getKey(), String.valueOf( ex.getCause() ) );
+            } catch ( InterruptedException ex ) {
+                // cannot happen, the task is done
+                Thread.currentThread().interrupt();
+            }
+        }
+        Runnable report;
+        while ( ( report = pendingReports.poll() ) != null ) {
+            report.run();
+        }
+    }
+
+    /**
+     * Wait for all queued experiments to be completed, so that the summary file can be safely closed.
+     */
+    private void awaitPendingExperiments() throws InterruptedException {
+        if ( executor == null ) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            while ( !executor.awaitTermination( 1, TimeUnit.MINUTES ) ) {
+                log.debug( "Waiting for queued experiments to complete..." );
+            }
+        } catch ( InterruptedException e ) {
+            executor.shutdownNow();
+            throw e;
+        } finally {
+            executor = null;
+            reportFinishedExperiments();
+        }
+    }
+
+    private void analyzeExperiment( ExpressionExperiment ee ) {
         String fileprefix = ee.getId() + "." + ee.getShortName().replaceAll( "[\\W\\s]+", "_" );
+        String detailFileName = "batch.proc.detail." + fileprefix + ".txt";
+        // only recorded if the experiment is completed
+        StageMetrics.Timer total = metrics.time( ee, "total" );
 
-        try ( Writer detailFile = initOutputFile( "batch.proc.detail." + fileprefix + ".txt" ) ) {
+        try ( TsvWriter detailFile = new TsvWriter( newOutputFile( detailFileName ) ) ) {
 
             Collection<ExperimentalFactor> experimentalFactors = ee.getExperimentalDesign().getExperimentalFactors();
 
             ExperimentalFactor batchFactor = expressionExperimentBatchCorrectionService.getBatchFactor( ee );
 
             if ( null == batchFactor ) {
-                this.addErrorObject( ee, "No batch factor: " + ee.getShortName() );
+                reportError( ee, "No batch factor: " + ee.getShortName() );
                 return;
             }
 
             if ( experimentalFactors.size() < 2 ) {
                 // need at least two factors, one of which has to be the batch.
-                this.addErrorObject( ee, "Too few factors: " + ee.getShortName() );
+                reportError( ee, "Too few factors: " + ee.getShortName() );
                 return;
             }
 
             if ( ee.getBioAssays().size() < 8 ) {
-                this.addErrorObject( ee, "Too small (" + ee.getBioAssays().size() + " samples): " + ee.getShortName() );
+                reportError( ee, "Too small (" + ee.getBioAssays().size() + " samples): " + ee.getShortName() );
                 return;
             }
 
@@ -131,7 +379,7 @@ public class BatchDiffExCli extends DifferentialExpressionAnalysisCli {
                 /*
                  * This could be modified to select just a few factors, at random ... but that's probably
                  */
-                this.addErrorObject( ee, "Too many factors (" + experimentalFactors.size()
+                reportError( ee, "Too many factors (" + experimentalFactors.size()
                         + " factors, including 'batch'): " + ee.getShortName() );
                 return;
             }
@@ -146,7 +394,7 @@ public class BatchDiffExCli extends DifferentialExpressionAnalysisCli {
                  * Note that later on we can still end up with a model that is not of full rank, so combat will fail.
                  * This can sometimes be ameliorated by dropping covariates.
                  */
-                this.addErrorObject( ee, "Batch effect is not correctable; possibly contains batches with only one sample: "
+                reportError( ee, "Batch effect is not correctable; possibly contains batches with only one sample: "
                         + ee.getShortName() );
 
                 return;
@@ -157,10 +405,13 @@ public class BatchDiffExCli extends DifferentialExpressionAnalysisCli {
             /*
              * Extract data
              */
-            Collection<ProcessedExpressionDataVector> vectos = processedExpressionDataVectorService
-                    .getProcessedDataVectors( ee );
+            ExpressionDataDoubleMatrix mat;
+            try ( StageMetrics.Timer t = metrics.time( ee, "loadVectors" ) ) {
+                Collection<ProcessedExpressionDataVector> vectos = processedExpressionDataVectorService
+                        .getProcessedDataVectors( ee );
 
-            ExpressionDataDoubleMatrix mat = new ExpressionDataDoubleMatrix( vectos );
+                mat = new ExpressionDataDoubleMatrix( vectos );
+            }
 
             /*
              * TODO for some data sets we should re-normalize?
@@ -177,145 +428,71 @@ public class BatchDiffExCli extends DifferentialExpressionAnalysisCli {
                 if ( ef.equals( batchFactor ) ) continue;
                 factors2.add( ef );
             }
-            int j = 0;
-            DifferentialExpressionAnalysisConfig configWithoutBatch = new DifferentialExpressionAnalysisConfig();
-            configWithoutBatch.addFactorsToInclude( factors2 );
-            DifferentialExpressionAnalysis beforeResults = lma.run( ee, mat, configWithoutBatch ).iterator().next();
-            Map<CompositeSequence, Map<ExperimentalFactor, Double>> beforeResultDetails = new HashMap<>();
-            for ( ExpressionAnalysisResultSet brs : beforeResults.getResultSets() ) {
-                assert brs.getExperimentalFactors().size() == 1;
-                ExperimentalFactor ef = brs.getExperimentalFactors().iterator().next();
-                Collection<DifferentialExpressionAnalysisResult> results = brs.getResults();
-                int c = 0;
-                for ( DifferentialExpressionAnalysisResult r : results ) {
-                    c = tally( beforeResultDetails, ef, r, c );
-                    if ( ++j % LOGGING_FREQ == 0 ) {
-                        log.info( j + " processed" );
-                    }
-                }
-                summaryBuf.append( "Before\t" )
-                        .append( ee.getId() ).append( "\t" )
-                        .append( ee.getShortName() ).append( "\t" )
-                        .append( ef.getId() ).append( "\t" )
-                        .append( ef.getName() ).append( "\t" )
-                        .append( results.size() ).append( "\t" )
-                        .append( c ).append( "\n" );
-            }
 
             /*
              * Then do it with batch.
              */
             Collection<ExperimentalFactor> factors = experimentalFactors;
             assert factors.contains( batchFactor );
-            DifferentialExpressionAnalysisConfig configIncludingBatch = new DifferentialExpressionAnalysisConfig();
-
-            configIncludingBatch.addFactorsToInclude( factors );
-
-            DifferentialExpressionAnalysis withBatchEffectResults = lma.run( ee, mat, configIncludingBatch ).iterator()
-                    .next();
 
             /*
-             * Determine how many genes are diff ex wrt batch. The other factors are tracked; this shows how we would do
-             * if we tried to simply directly include batch in the model
+             * The four fits form a small DAG: the two fits on the original data and ComBat only need the data matrix,
+             * and the two fits on the corrected data only need the ComBat output. None of these modify their input
+             * matrix. Without a stage executor, everything runs in the calling thread in the order of submission. The
+             * work done on the stage executor is added to the total of the experiment.
              */
-            Map<CompositeSequence, Map<ExperimentalFactor, Double>> batchEffectDetails = new HashMap<>();
-
-            for ( ExpressionAnalysisResultSet brs : withBatchEffectResults.getResultSets() ) {
-                assert brs.getExperimentalFactors().size() == 1;
-                ExperimentalFactor ef = brs.getExperimentalFactors().iterator().next();
-                Collection<DifferentialExpressionAnalysisResult> results = brs.getResults();
-
-                int c = 0;
-                for ( DifferentialExpressionAnalysisResult r : results ) {
-                    c = tally( batchEffectDetails, ef, r, c );
-
-                    if ( ++j % LOGGING_FREQ == 0 ) {
-                        log.info( j + " processed" );
-                    }
-
-                }
-                summaryBuf.append( "Batch\t" )
-                        .append( ee.getId() ).append( "\t" )
-                        .append( ee.getShortName() ).append( "\t" )
-                        .append( ef.getId() ).append( "\t" )
-                        .append( ef.getName() ).append( "\t" )
-                        .append( results.size() ).append( "\t" )
-                        .append( c ).append( "\n" );
-            }
+            Executor stages = fitExecutor != null ? fitExecutor : Runnable::run;
+            CompletableFuture<DifferentialExpressionAnalysis> beforeFit = CompletableFuture
+                    .supplyAsync( total.including( () -> fit( ee, mat, factors2, "fit.before" ) ), stages );
+            CompletableFuture<DifferentialExpressionAnalysis> batchFit = CompletableFuture
+                    .supplyAsync( total.including( () -> fit( ee, mat, factors, "fit.batch" ) ), stages );
 
             /*
              * Correct for batch effects; covariates which are "unimportant" will be dropped.
              */
-            log.info( "ComBat-ing" );
             //            boolean parametric = true;
             //   double importanceThreshold = 0.01;
-            ExpressionDataDoubleMatrix comBat = expressionExperimentBatchCorrectionService.comBat( ee, mat );
-            assert comBat != null;
+            CompletableFuture<ExpressionDataDoubleMatrix> comBatFuture = CompletableFuture.supplyAsync( total.including( () -> {
+                log.info( "ComBat-ing" );
+                try ( StageMetrics.Timer t = metrics.time( ee, "comBat" ) ) {
+                    return expressionExperimentBatchCorrectionService.comBat( ee, mat );
+                }
+            } ), stages );
 
             /*
              * Check if we have removed the batch effect: there should be no diff ex wrt batch. This is just a sanity
              * check, really. The other factors are tracked just for completeness. Note that Combat log transforms the
              * data if necessary, but transforms it back.
              */
-            DifferentialExpressionAnalysis revisedResultWithBatch = lma.run( ee, comBat, configIncludingBatch )
-                    .iterator().next();
-
-            Map<CompositeSequence, Map<ExperimentalFactor, Double>> batchEffectAfterCorrDetails = new HashMap<>();
+            CompletableFuture<DifferentialExpressionAnalysis> batchAfterCorrFit = comBatFuture
+                    .thenApplyAsync( comBat -> total.including( () -> fit( ee, comBat, factors, "fit.batchAfterCorr" ) ).get(), stages );
 
-            for ( ExpressionAnalysisResultSet brs : revisedResultWithBatch.getResultSets() ) {
-                assert brs.getExperimentalFactors().size() == 1;
-                ExperimentalFactor ef = brs.getExperimentalFactors().iterator().next();
-                Collection<DifferentialExpressionAnalysisResult> results = brs.getResults();
-                int c = 0;
-                for ( DifferentialExpressionAnalysisResult r : results ) {
-                    c = tally( batchEffectAfterCorrDetails, ef, r, c );
+            /*
+             * Now without batch as a factor, which is what we really want.
+             */
+            CompletableFuture<DifferentialExpressionAnalysis> afterFit = comBatFuture
+                    .thenApplyAsync( comBat -> total.including( () -> fit( ee, comBat, factors2, "fit.after" ) ).get(), stages );
 
-                    if ( ++j % LOGGING_FREQ == 0 ) {
-                        log.info( j + " processed" );
-                    }
+            DiffExResultTable details = new DiffExResultTable( factors, 4, mat.rows() );
 
-                }
-                summaryBuf.append( "BatchAftCorr" ).append( "\t" )
-                        .append( ee.getId() ).append( "\t" )
-                        .append( ee.getShortName() ).append( "\t" )
-                        .append( ef.getId() ).append( "\t" )
-                        .append( ef.getName() ).append( "\t" )
-                        .append( results.size() ).append( "\t" )
-                        .append( c ).append( "\n" );
-            }
+            tally( details, BEFORE, "Before", ee, await( beforeFit ), summaryBuf );
 
             /*
-             * Now without batch as a factor, which is what we really want.
+             * Determine how many genes are diff ex wrt batch. The other factors are tracked; this shows how we would do
+             * if we tried to simply directly include batch in the model
              */
-            boolean hasNonNulls = false;
-            DifferentialExpressionAnalysis revisedResult = lma.run( ee, comBat, configWithoutBatch ).iterator().next();
-            Map<CompositeSequence, Map<ExperimentalFactor, Double>> revisedResultDetails = new HashMap<>();
-            for ( ExpressionAnalysisResultSet brs : revisedResult.getResultSets() ) {
-                assert brs.getExperimentalFactors().size() == 1;
-                ExperimentalFactor ef = brs.getExperimentalFactors().iterator().next();
-                Collection<DifferentialExpressionAnalysisResult> results = brs.getResults();
-                int c = 0;
-                for ( DifferentialExpressionAnalysisResult r : results ) {
-
-                    if ( r.getCorrectedPvalue() != null && !Double.isNaN( r.getCorrectedPvalue() ) ) {
-                        hasNonNulls = true;
-                    }
-
-                    c = tally( revisedResultDetails, ef, r, c );
+            tally( details, BATCH, "Batch", ee, await( batchFit ), summaryBuf );
 
-                    if ( ++j % LOGGING_FREQ == 0 ) {
-                        log.info( j + " processed" );
-                    }
+            ExpressionDataDoubleMatrix comBat = await( comBatFuture );
+            assert comBat != null;
 
-                }
-                summaryBuf.append( "After\t" + ee.getId() + "\t" + ee.getShortName() + "\t" + ef.getId() + "\t"
-                        + ef.getName() + "\t" + results.size() + "\t" + c + "\n" );
+            tally( details, BATCH_AFTER_CORR, "BatchAftCorr", ee, await( batchAfterCorrFit ), summaryBuf );
 
-            }
+            tally( details, AFTER, "After", ee, await( afterFit ), summaryBuf );
 
-            if ( !hasNonNulls ) {
+            if ( !details.hasValues( AFTER ) ) {
                 // this means something went wrong ... somewhere. Possibly the model cannot be fit.
-                addErrorObject( ee, "No valid pvalues after correction: " + ee.getShortName() );
+                reportError( ee, "No valid pvalues after correction: " + ee.getShortName() );
                 return;
             }
 
@@ -324,102 +501,188 @@ public class BatchDiffExCli extends DifferentialExpressionAnalysisCli {
              */
 
             detailFile
-                    .write( "EEID\tEENAME\tEFID\tEFNAME\tPROBEID\tPROBENAME\tGENESYMBS\tGENEIDS\tBEFOREQVAL\tBATCHQVAL\tBATAFTERQVAL\tAFTERQVAL\n" );
+                    .writeLine( "EEID\tEENAME\tEFID\tEFNAME\tPROBEID\tPROBENAME\tGENESYMBS\tGENEIDS\tBEFOREQVAL\tBATCHQVAL\tBATAFTERQVAL\tAFTERQVAL" );
 
-            getGeneAnnotations( ee );
+            List<GeneAnnotationCache.PlatformAnnotations> annotations;
+            try ( StageMetrics.Timer t = metrics.time( ee, "annotations" ) ) {
+                annotations = annotationCache.get( eeService.getArrayDesignsUsed( ee ) );
+            }
+
+            StageMetrics.Timer writeDetails = metrics.time( ee, "writeDetails" );
 
-            for ( CompositeSequence c : beforeResultDetails.keySet() ) {
+            List<ExperimentalFactor> tableFactors = details.getFactors();
+            for ( int i = 0; i < details.getNumProbes(); i++ ) {
+                if ( !details.hasResult( i, BEFORE ) ) continue;
+                CompositeSequence c = details.getProbe( i );
 
                 // Get the gene information
                 String geneSymbs = "";
                 String geneIds = "";
-                if ( genes.containsKey( c ) ) {
-                    LinkedHashSet<Gene> g = new LinkedHashSet<>( genes.get( c ) );
-                    geneSymbs = g.stream().map( Gene::getOfficialSymbol ).collect( Collectors.joining( "|" ) );
-                    geneIds = StringUtils.join( IdentifiableUtils.getIds( g ), "|" );
+                for ( GeneAnnotationCache.PlatformAnnotations pa : annotations ) {
+                    int k = pa.indexOf( c.getId() );
+                    if ( k >= 0 ) {
+                        geneSymbs = pa.getGeneSymbols( k );
+                        geneIds = pa.getGeneIds( k );
+                        break;
+                    }
                 }
 
-                for ( ExperimentalFactor ef : factors ) {
+                for ( int f = 0; f < tableFactors.size(); f++ ) {
+                    ExperimentalFactor ef = tableFactors.get( f );
 
-                    detailFile.write( ee.getId() + "\t" + ee.getShortName() + "\t" + ef.getId() + "\t" + ef.getName()
-                            + "\t" + c.getId() + "\t" + c.getName() + "\t" + geneSymbs + "\t" + geneIds + "\t" );
+                    detailFile.field( ee.getId() ).field( ee.getShortName() ).field( ef.getId() ).field( ef.getName() )
+                            .field( c.getId() ).field( c.getName() ).field( geneSymbs ).field( geneIds );
 
-                    Double bpval = beforeResultDetails.get( c ).get( ef ); // will be null for 'batch'
+                    double bpval = details.get( i, f, BEFORE ); // will be NaN for 'batch'
 
-                    Double batpval = batchEffectDetails.get( c ).get( ef ); // when batch was included.
+                    double batpval = details.get( i, f, BATCH ); // when batch was included.
 
-                    Double batapval = batchEffectAfterCorrDetails.get( c ).get( ef ); // when batch was included.
+                    double batapval = details.get( i, f, BATCH_AFTER_CORR ); // when batch was included.
 
-                    Double aftpval = revisedResultDetails.get( c ).get( ef ); // will be null for 'batch'
+                    double aftpval = details.get( i, f, AFTER ); // will be NaN for 'batch'
 
-                    detailFile.write( String.format( "%.4g\t%.4g\t%.4g\t%.4g\n", bpval, batpval, batapval, aftpval ) );
+                    detailFile.field( bpval ).field( batpval ).field( batapval ).field( aftpval ).endRow();
 
                 }
             }
             detailFile.close();
+            writeDetails.close();
 
-            summaryFile.write( summaryBuf.toString() );
-            summaryFile.flush();
+            String rawDataFileName;
+            String correctedDataFileName;
+            try ( StageMetrics.Timer t = metrics.time( ee, "writeData" ) ) {
+                rawDataFileName = saveData( mat, fileprefix + ".originaldata" );
+                correctedDataFileName = saveData( comBat, fileprefix + ".correcteddata" );
+            }
+            total.close();
 
-            String rawDataFileName = fileprefix + ".originaldata.txt";
-            saveData( mat, rawDataFileName );
-            String correctedDataFileName = fileprefix + ".correcteddata.txt";
-            saveData( comBat, correctedDataFileName );
+            // last, so that the summary only has lines for the experiments recorded in the journal
+            writeSummary( summaryBuf );
+            journal.record( ee.getId(), detailFileName, rawDataFileName, correctedDataFileName );
 
-            addSuccessObject( ee, "" );
+            reportSuccess( ee, "" );
         } catch ( Exception e ) {
             log.error( e, e );
-            addErrorObject( ee, e.getMessage() );
+            reportError( ee, e.getMessage() );
         }
     }
 
     /**
-     * Gets annotations for this experiment, if the array designs have not already been seen in this run.
+     * Fit a model including the given factors, ignoring interactions.
+     * <p>
+     * A fresh configuration is used for each fit since fits may run concurrently.
      *
-     * @param ee experiment
+     * @param stage name under which the time spent is recorded
+     */
+    private DifferentialExpressionAnalysis fit( ExpressionExperiment ee, ExpressionDataDoubleMatrix mat,
+            Collection<ExperimentalFactor> factors, String stage ) {
+        try ( StageMetrics.Timer t = metrics.time( ee, stage ) ) {
+            DifferentialExpressionAnalysisConfig config = new DifferentialExpressionAnalysisConfig();
+            config.addFactorsToInclude( factors );
+            return lma.run( ee, mat, config ).iterator().next();
+        }
+    }
+
+    /**
+     * Wait for a stage to complete, rethrowing its failure as is.
+     */
+    private static <T> T await( CompletableFuture<T> stage ) throws Exception {
+        try {
+            return stage.join();
+        } catch ( CompletionException e ) {
+            if ( e.getCause() instanceof Exception ) {
+                throw ( Exception ) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Append the summary lines of an experiment; lines from different experiments are never interleaved.
+     */
+    private void writeSummary( CharSequence summaryBuf ) throws IOException {
+        synchronized ( summaryFile ) {
+            summaryFile.write( summaryBuf.toString() );
+            summaryFile.flush();
+        }
+    }
+
+    /**
+     * Open the summary file; when resuming, an existing summary is appended to instead of being replaced, once the
+     * lines of the experiments the previous run did not complete are dropped.
      */
-    private void getGeneAnnotations( ExpressionExperiment ee ) {
-        Collection<ArrayDesign> arrayDesigns = eeService.getArrayDesignsUsed( ee );
-        for ( ArrayDesign ad : arrayDesigns ) {
-            if ( seenArrays.contains( ad ) ) continue;
-            ad = this.arrayDesignService.thaw( ad );
-            genes.putAll( compositeSequenceService.getGenes( ad.getCompositeSequences() ) );
-            seenArrays.add( ad );
+    private Writer initSummaryFile( Journal journal, String fileName, String header ) throws IOException {
+        File f = new File( fileName );
+        if ( resume && f.length() > 0 ) {
+            int dropped = journal.dropIncomplete( f.toPath(), 1 );
+            if ( dropped > 0 ) {
+                log.warn( "Dropped " + dropped + " summary lines of experiments that were not completed from " + f );
+            }
+            log.info( "Appending to " + f.getAbsolutePath() );
+            return new FileWriter( f, true );
         }
+        Writer w = new FileWriter( newOutputFile( fileName ) );
+        w.write( header );
+        return w;
     }
 
-    private Writer initOutputFile( String fileName ) throws IOException {
+    /**
+     * Create an empty output file, replacing any previous one.
+     */
+    private File newOutputFile( String fileName ) throws IOException {
         File f = new File( fileName );
         if ( f.exists() ) {
             f.delete();
         }
         f.createNewFile();
         log.info( "New file: " + f.getAbsolutePath() );
-        return new FileWriter( f );
+        return f;
     }
 
-    private void saveData( ExpressionDataDoubleMatrix mat, String filename ) throws IOException {
-        MatrixWriter mw = new MatrixWriter( null, null );
-        try ( FileWriter fw = new FileWriter( filename ) ) {
-            mw.write( mat, null, fw );
+    /**
+     * @param baseName file name without extension, which depends on the data format
+     * @return the name of the file written
+     */
+    private String saveData( ExpressionDataDoubleMatrix mat, String baseName ) throws IOException {
+        String fileName;
+        switch ( dataFormat ) {
+            case "binary":
+                fileName = baseName + ".bin";
+                BinaryMatrixFile.write( mat, Paths.get( fileName ), false );
+                break;
+            case "binary.gz":
+                fileName = baseName + ".bin.gz";
+                BinaryMatrixFile.write( mat, Paths.get( fileName ), true );
+                break;
+            default:
+                fileName = baseName + ".txt";
+                MatrixWriter mw = new MatrixWriter( null, null );
+                try ( FileWriter fw = new FileWriter( fileName ) ) {
+                    mw.write( mat, null, fw );
+                }
         }
+        return fileName;
     }
 
-    private int tally( Map<CompositeSequence, Map<ExperimentalFactor, Double>> revisedResultDetails,
-            ExperimentalFactor ef, DifferentialExpressionAnalysisResult r, int c ) {
-        Double pval = r.getCorrectedPvalue();
-
-        if ( pval != null && pval < SUMMARY_QVAL_THRESHOLD ) {
-            c++;
-        }
-        /*
-         * Map of probe -> factor -> pval
-         */
-        CompositeSequence probe = r.getProbe();
-        if ( !revisedResultDetails.containsKey( probe ) ) {
-            revisedResultDetails.put( probe, new HashMap<ExperimentalFactor, Double>() );
+    /**
+     * Store the results of an analysis in the table and append the per-factor summary lines.
+     *
+     * @param condition the analysis the results are from
+     * @param state     label of the analysis in the summary
+     */
+    private void tally( DiffExResultTable details, int condition, String state, ExpressionExperiment ee,
+            DifferentialExpressionAnalysis analysis, StringBuilder summaryBuf ) {
+        for ( ExpressionAnalysisResultSet brs : analysis.getResultSets() ) {
+            assert brs.getExperimentalFactors().size() == 1;
+            ExperimentalFactor ef = brs.getExperimentalFactors().iterator().next();
+            int c = details.add( condition, brs, SUMMARY_QVAL_THRESHOLD );
+            summaryBuf.append( state ).append( "\t" )
+                    .append( ee.getId() ).append( "\t" )
+                    .append( ee.getShortName() ).append( "\t" )
+                    .append( ef.getId() ).append( "\t" )
+                    .append( ef.getName() ).append( "\t" )
+                    .append( brs.getResults().size() ).append( "\t" )
+                    .append( c ).append( "\n" );
         }
-        revisedResultDetails.get( probe ).put( ef, pval );
-        return c;
     }
 }
@@ -14,6 +14,9 @@
  */
 package ubic.gemma.contrib.apps;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
 import org.springframework.beans.factory.annotation.Autowired;
 import ubic.gemma.apps.ExpressionExperimentManipulatingCLI;
 import ubic.gemma.core.analysis.preprocess.batcheffects.BatchConfound;
@@ -23,6 +26,7 @@ import ubic.gemma.core.analysis.preprocess.svd.SVDService;
 import ubic.gemma.model.expression.experiment.ExperimentalFactor;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
 
+import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.Map;
 
@@ -37,6 +41,12 @@ public class BatchEffectTestCli extends ExpressionExperimentManipulatingCLI {
     @Autowired
     private SVDService svdService;
 
+    /**
+     * If true, experiments recorded in the journal of a previous run are skipped.
+     */
+    private boolean resume = false;
+    private Journal journal;
+
     @Override
     public String getCommandName() {
         return "batchEffectTest";
@@ -47,8 +57,37 @@ public class BatchEffectTestCli extends ExpressionExperimentManipulatingCLI {
         return "Test for batch effects";
     }
 
+    @Override
+    protected void buildExperimentOptions( Options options ) {
+        super.buildExperimentOptions( options );
+        options.addOption( Option.builder( "resume" ).longOpt( "resume" )
+                .desc( "Skip the experiments completed by a previous run, as recorded in batchEffectTest.journal.txt" )
+                .build() );
+    }
+
+    @Override
+    protected void processExperimentOptions( CommandLine commandLine ) {
+        super.processExperimentOptions( commandLine );
+        this.resume = commandLine.hasOption( "resume" );
+    }
+
+    @Override
+    protected void doAuthenticatedWork() throws Exception {
+        try ( Journal journal = new Journal( Paths.get( "batchEffectTest.journal.txt" ), resume ) ) {
+            this.journal = journal;
+            super.doAuthenticatedWork();
+        } finally {
+            this.journal = null;
+        }
+    }
+
     @Override
     protected void processExpressionExperiment( ExpressionExperiment ee ) {
+        if ( journal.isCompleted( ee.getId() ) ) {
+            log.info( "Skipping " + ee + ", it was completed by a previous run" );
+            return;
+        }
+
         ee = eeService.thawLite( ee );
         log.info( "Processing: " + ee );
 
@@ -66,6 +105,8 @@ public class BatchEffectTestCli extends ExpressionExperimentManipulatingCLI {
 
             success = true;
             if ( success ) {
+                // results only go to the standard output
+                journal.record( ee.getId() );
                 this.addSuccessObject( ee.toString(), "" );
             } else {
                 this.addErrorObject( ee.toString() + ": No dates found", "" );
@@ -0,0 +1,247 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact binary format for expression data matrices.
+ * <p>
+ * The layout is, in big-endian order: the magic number {@code GAMX}, a format version, the number of rows and columns,
+ * the row names and the column names (each as a length-prefixed UTF-8 string) and finally the values as a row-major
+ * block of 64-bit floats. The whole file can optionally be gzipped; {@link #read(Path)} detects this on its own.
+ * <p>
+ * Compared to the text output of MatrixWriter, nothing has to be formatted or parsed, and uncompressed files can be
+ * memory-mapped by the reader.
+ */
+public class BinaryMatrixFile {
+
+    private static final int MAGIC = 0x47414d58; // GAMX
+    private static final int VERSION = 1;
+    private static final int GZIP_MAGIC = 0x1f8b;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Write an expression data matrix, using design element names for rows and biomaterial names for columns.
+     *
+     * @param compress gzip the output
+     */
+    public static void write( ExpressionDataDoubleMatrix mat, Path path, boolean compress ) throws IOException {
+        List<String> rowNames = new ArrayList<>( mat.rows() );
+        for ( int i = 0; i < mat.rows(); i++ ) {
+            rowNames.add( mat.getDesignElementForRow( i ).getName() );
+        }
+        List<String> columnNames = new ArrayList<>( mat.columns() );
+        for ( int j = 0; j < mat.columns(); j++ ) {
+            columnNames.add( mat.getBioMaterialForColumn( j ).getName() );
+        }
+        write( rowNames, columnNames, mat.getRawMatrix(), path, compress );
+    }
+
+    /**
+     * @param data values, one array per row
+     * @param compress gzip the output
+     */
+    public static void write( List<String> rowNames, List<String> columnNames, double[][] data, Path path,
+            boolean compress ) throws IOException {
+        if ( data.length != rowNames.size() ) {
+            throw new IllegalArgumentException( "Expected " + rowNames.size() + " rows, got " + data.length + "." );
+        }
+        try ( FileChannel fc = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            if ( compress ) {
+                try ( WritableByteChannel out = Channels.newChannel(
+                        new GZIPOutputStream( Channels.newOutputStream( fc ), BUFFER_SIZE ) ) ) {
+                    write( rowNames, columnNames, data, out );
+                }
+            } else {
+                write( rowNames, columnNames, data, fc );
+            }
+        }
+    }
+
+    private static void write( List<String> rowNames, List<String> columnNames, double[][] data,
+            WritableByteChannel out ) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect( BUFFER_SIZE );
+        buf.putInt( MAGIC ).putInt( VERSION ).putInt( rowNames.size() ).putInt( columnNames.size() );
+        for ( String name : rowNames ) {
+            putString( name, buf, out );
+        }
+        for ( String name : columnNames ) {
+            putString( name, buf, out );
+        }
+        for ( double[] row : data ) {
+            if ( row.length != columnNames.size() ) {
+                throw new IllegalArgumentException(
+                        "Expected " + columnNames.size() + " columns, got " + row.length + "." );
+            }
+            for ( double v : row ) {
+                if ( buf.remaining() < Double.BYTES ) {
+                    drain( buf, out );
+                }
+                buf.putDouble( v );
+            }
+        }
+        drain( buf, out );
+    }
+
+    /**
+     * Read a matrix written by this class, compressed or not.
+     */
+    public static DoubleMatrix<String, String> read( Path path ) throws IOException {
+        if ( isCompressed( path ) ) {
+            try ( ReadableByteChannel in = Channels.newChannel(
+                    new GZIPInputStream( Files.newInputStream( path ), BUFFER_SIZE ) ) ) {
+                ByteBuffer buf = ByteBuffer.allocateDirect( BUFFER_SIZE );
+                buf.flip();
+                return read( buf, in );
+            }
+        } else {
+            try ( FileChannel fc = FileChannel.open( path, StandardOpenOption.READ ) ) {
+                MappedByteBuffer buf = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
+                return read( buf, null );
+            }
+        }
+    }
+
+    /**
+     * @param in source for refilling the buffer, or null if the buffer holds the whole file
+     */
+    private static DoubleMatrix<String, String> read( ByteBuffer buf, ReadableByteChannel in ) throws IOException {
+        require( Integer.BYTES * 4, buf, in );
+        if ( buf.getInt() != MAGIC ) {
+            throw new IOException( "Not a binary matrix file." );
+        }
+        int version = buf.getInt();
+        if ( version != VERSION ) {
+            throw new IOException( "Unsupported binary matrix file version: " + version + "." );
+        }
+        int rows = buf.getInt();
+        int columns = buf.getInt();
+        List<String> rowNames = new ArrayList<>( rows );
+        for ( int i = 0; i < rows; i++ ) {
+            rowNames.add( getString( buf, in ) );
+        }
+        List<String> columnNames = new ArrayList<>( columns );
+        for ( int j = 0; j < columns; j++ ) {
+            columnNames.add( getString( buf, in ) );
+        }
+        double[][] data = new double[rows][columns];
+        for ( double[] row : data ) {
+            int j = 0;
+            while ( j < columns ) {
+                require( Double.BYTES, buf, in );
+                int n = Math.min( columns - j, buf.remaining() / Double.BYTES );
+                buf.asDoubleBuffer().get( row, j, n );
+                buf.position( buf.position() + n * Double.BYTES );
+                j += n;
+            }
+        }
+        DoubleMatrix<String, String> result = new DenseDoubleMatrix<>( data );
+        result.setRowNames( rowNames );
+        result.setColumnNames( columnNames );
+        return result;
+    }
+
+    private static boolean isCompressed( Path path ) throws IOException {
+        try ( InputStream is = new BufferedInputStream( Files.newInputStream( path ) ) ) {
+            int b1 = is.read();
+            int b2 = is.read();
+            return b1 >= 0 && b2 >= 0 && ( ( b1 << 8 ) | b2 ) == GZIP_MAGIC;
+        }
+    }
+
+    private static void putString( String s, ByteBuffer buf, WritableByteChannel out ) throws IOException {
+        byte[] bytes = s == null ? new byte[0] : s.getBytes( StandardCharsets.UTF_8 );
+        if ( buf.remaining() < Integer.BYTES + bytes.length ) {
+            drain( buf, out );
+        }
+        buf.putInt( bytes.length );
+        if ( bytes.length > buf.remaining() ) {
+            // longer than the buffer itself
+            drain( buf, out );
+            out.write( ByteBuffer.wrap( bytes ) );
+        } else {
+            buf.put( bytes );
+        }
+    }
+
+    private static String getString( ByteBuffer buf, ReadableByteChannel in ) throws IOException {
+        require( Integer.BYTES, buf, in );
+        int length = buf.getInt();
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while ( read < length ) {
+            require( 1, buf, in );
+            int n = Math.min( length - read, buf.remaining() );
+            buf.get( bytes, read, n );
+            read += n;
+        }
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    private static void drain( ByteBuffer buf, WritableByteChannel out ) throws IOException {
+        buf.flip();
+        while ( buf.hasRemaining() ) {
+            out.write( buf );
+        }
+        buf.clear();
+    }
+
+    /**
+     * Ensure that at least the given number of bytes are available in the buffer, refilling it from the channel if
+     * necessary.
+     */
+    private static void require( int n, ByteBuffer buf, ReadableByteChannel in ) throws IOException {
+        if ( buf.remaining() >= n ) {
+            return;
+        }
+        if ( in == null ) {
+            throw new IOException( "Unexpected end of binary matrix file." );
+        }
+        buf.compact();
+        while ( buf.position() < n ) {
+            if ( in.read( buf ) < 0 ) {
+                throw new IOException( "Unexpected end of binary matrix file." );
+            }
+        }
+        buf.flip();
+    }
+}
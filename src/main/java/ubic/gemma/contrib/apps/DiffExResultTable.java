@@ -0,0 +1,188 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import cern.colt.map.OpenLongIntHashMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysisResult;
+import ubic.gemma.model.analysis.expression.diff.ExpressionAnalysisResultSet;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.expression.experiment.ExperimentalFactor;
+
+import java.util.*;
+
+/**
+ * Corrected p-values from several differential expression analyses of the same experiment, indexed by probe, factor
+ * and condition (i.e. which of the analyses the value comes from).
+ * <p>
+ * All the values are kept in a single primitive array, so that a table for a large experiment costs a few megabytes
+ * instead of millions of boxed values in nested maps. Missing values, including results without a corrected p-value,
+ * are stored as NaN.
+ */
+class DiffExResultTable {
+
+    private static final Log log = LogFactory.getLog( DiffExResultTable.class );
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Progress is logged every this many results added.
+     */
+    private static final int LOGGING_FREQ = 20000;
+
+    private final ExperimentalFactor[] factors;
+    private final int numConditions;
+    /**
+     * Number of values per probe.
+     */
+    private final int stride;
+
+    /**
+     * Maps probe IDs to their row index, plus one so that absent probes map to zero.
+     */
+    private final OpenLongIntHashMap probeIndex;
+    private final List<CompositeSequence> probes;
+
+    /**
+     * Probes that have a result in each condition; a probe can have a result whose p-value is missing.
+     */
+    private final BitSet[] seen;
+
+    private double[] values;
+
+    /**
+     * Number of results added so far, over all conditions.
+     */
+    private int numAdded = 0;
+
+    /**
+     * @param factors       factors the results can refer to; the iteration order is retained
+     * @param numConditions number of analyses whose results will be stored
+     * @param expectedProbes an estimate of the number of probes, zero if unknown
+     */
+    DiffExResultTable( Collection<ExperimentalFactor> factors, int numConditions, int expectedProbes ) {
+        this.factors = factors.toArray( new ExperimentalFactor[0] );
+        this.numConditions = numConditions;
+        this.stride = this.factors.length * numConditions;
+        int capacity = expectedProbes > 0 ? expectedProbes : DEFAULT_CAPACITY;
+        this.probeIndex = new OpenLongIntHashMap( capacity );
+        this.probes = new ArrayList<>( capacity );
+        this.seen = new BitSet[numConditions];
+        for ( int i = 0; i < numConditions; i++ ) {
+            this.seen[i] = new BitSet( capacity );
+        }
+        this.values = new double[capacity * stride];
+        Arrays.fill( this.values, Double.NaN );
+    }
+
+    /**
+     * Store the corrected p-values of a result set, which must be for a single factor.
+     *
+     * @param condition index of the analysis the result set is from
+     * @param threshold threshold for counting a result as significant
+     * @return the number of results with a corrected p-value below the threshold
+     */
+    int add( int condition, ExpressionAnalysisResultSet resultSet, double threshold ) {
+        if ( condition < 0 || condition >= numConditions ) {
+            throw new IndexOutOfBoundsException( "No such condition: " + condition );
+        }
+        int factor = indexOf( resultSet.getExperimentalFactors().iterator().next() );
+        int c = 0;
+        for ( DifferentialExpressionAnalysisResult r : resultSet.getResults() ) {
+            Double pval = r.getCorrectedPvalue();
+            if ( pval != null && pval < threshold ) {
+                c++;
+            }
+            int probe = indexOf( r.getProbe() );
+            seen[condition].set( probe );
+            values[probe * stride + factor * numConditions + condition] = pval != null ? pval : Double.NaN;
+            if ( ++numAdded % LOGGING_FREQ == 0 ) {
+                log.info( numAdded + " processed" );
+            }
+        }
+        return c;
+    }
+
+    int getNumProbes() {
+        return probes.size();
+    }
+
+    CompositeSequence getProbe( int probe ) {
+        return probes.get( probe );
+    }
+
+    List<ExperimentalFactor> getFactors() {
+        return Collections.unmodifiableList( Arrays.asList( factors ) );
+    }
+
+    /**
+     * @return true if the given condition had a result for the probe, regardless of its value
+     */
+    boolean hasResult( int probe, int condition ) {
+        return seen[condition].get( probe );
+    }
+
+    /**
+     * @return true if any of the results of the given condition has a corrected p-value
+     */
+    boolean hasValues( int condition ) {
+        for ( int probe = seen[condition].nextSetBit( 0 ); probe >= 0; probe = seen[condition].nextSetBit( probe + 1 ) ) {
+            for ( int factor = 0; factor < factors.length; factor++ ) {
+                if ( !Double.isNaN( get( probe, factor, condition ) ) ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the corrected p-value, or NaN if missing
+     */
+    double get( int probe, int factor, int condition ) {
+        return values[probe * stride + factor * numConditions + condition];
+    }
+
+    private int indexOf( ExperimentalFactor ef ) {
+        for ( int i = 0; i < factors.length; i++ ) {
+            if ( factors[i].equals( ef ) ) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException( ef + " is not one of the factors of this table." );
+    }
+
+    private int indexOf( CompositeSequence probe ) {
+        int i = probeIndex.get( probe.getId() );
+        if ( i > 0 ) {
+            return i - 1;
+        }
+        i = probes.size();
+        probes.add( probe );
+        probeIndex.put( probe.getId(), i + 1 );
+        if ( ( i + 1 ) * stride > values.length ) {
+            int oldLength = values.length;
+            values = Arrays.copyOf( values, Math.max( 2 * oldLength, ( i + 1 ) * stride ) );
+            Arrays.fill( values, oldLength, values.length, Double.NaN );
+        }
+        return i;
+    }
+}
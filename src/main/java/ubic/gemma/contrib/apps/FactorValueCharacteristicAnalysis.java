@@ -14,8 +14,16 @@
  */
 package ubic.gemma.contrib.apps;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.hibernate.SessionFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 import ubic.gemma.apps.ExpressionExperimentManipulatingCLI;
 import ubic.gemma.core.analysis.expression.diff.BaselineSelection;
 import ubic.gemma.model.common.description.Characteristic;
@@ -25,8 +33,17 @@ import ubic.gemma.persistence.service.expression.experiment.ExperimentalDesignSe
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
@@ -35,18 +52,87 @@ import java.util.stream.Collectors;
  */
 public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManipulatingCLI {
 
+    /**
+     * Number of experiments whose designs are loaded at once.
+     */
+    private static final int DESIGN_BATCH_SIZE = 500;
+
+    @Service
+    static class HelperService {
+
+        @Autowired
+        private SessionFactory sessionFactory;
+
+        /**
+         * Load experimental designs with their factors, factor values and characteristics in a single query.
+         */
+        @Transactional(readOnly = true)
+        public List<ExperimentalDesign> loadWithExperimentalFactors( Collection<Long> ids ) {
+            //noinspection unchecked
+            return sessionFactory.getCurrentSession()
+                    .createQuery( "select distinct ed from ExperimentalDesign ed "
+                            + "left join fetch ed.experimentalFactors ef "
+                            + "left join fetch ef.factorValues fv "
+                            + "left join fetch fv.characteristics "
+                            + "left join fetch fv.measurement "
+                            + "where ed.id in (:ids)" )
+                    .setParameterList( "ids", ids )
+                    .list();
+        }
+    }
+
     @Autowired
     private ExperimentalDesignService eds;
 
-    Collection<RemappingInfo> results = new HashSet<>();
-    Collection<RemappingInfo> unresolved = new HashSet<>();
-    private int numSingletons = 0;
-    private int numMultiplex = 0;
-    private int numDuplex = 0;
-    private int nosolution = 0;
-    private int experimentsExamined = 0; // not counting ones that have no experimental design
+    @Autowired
+    private HelperService helperService;
+
+    private static final String HEADER = "Experiment\tExperiment ID\tFactorValue\tFVID\tSummary\tC1 ID\tC2 ID\tSubjectCategory\tSubject\tPredicate\tObjectCategory\tObject\n";
+
+    /**
+     * If true, experiments recorded in the journal of a previous run are skipped and its output files are appended to.
+     */
+    private boolean resume = false;
+    private Journal journal;
+
+    /*
+     * Results are written as each experiment is completed.
+     */
+    private Path remappingFile;
+    private Path unresolvedFile;
+    private BufferedWriter remappingWriter;
+    private BufferedWriter unresolvedWriter;
+
+    /**
+     * Number of experiments classified concurrently; their designs are still loaded by the thread running the CLI.
+     */
+    private int numThreads = 1;
+    private ExecutorService executor;
+
+    /**
+     * Experiments queued on the worker pool that are not known to be finished.
+     */
+    private final Map<ExpressionExperiment, Future<?>> pendingExperiments = new LinkedHashMap<>();
+
+    /**
+     * Errors of the experiments, reported by the thread running the CLI since the CLI does not expect its error
+     * objects to be added from other threads.
+     */
+    private final Queue<Runnable> pendingReports = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder numSingletons = new LongAdder();
+    private final LongAdder numMultiplex = new LongAdder();
+    private final LongAdder numDuplex = new LongAdder();
+    private final LongAdder nosolution = new LongAdder();
+    private final LongAdder experimentsExamined = new LongAdder(); // not counting ones that have no experimental design
     private int numExperiments;
 
+    /*
+     * Designs are loaded ahead of time, a batch of experiments at once, in the order the experiments are processed.
+     */
+    private Iterator<ExpressionExperiment> toPrefetch = Collections.emptyIterator();
+    private final Map<Long, ExperimentalDesign> prefetchedDesigns = new HashMap<>();
+
     @Override
     public String getCommandName() {
         return "fvAnalysis";
@@ -57,11 +143,47 @@ public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManip
         return "Analyze factor value characteristics for grouping oppotunities";
     }
 
+    @Override
+    protected void buildExperimentOptions( Options options ) {
+        super.buildExperimentOptions( options );
+        options.addOption( Option.builder( "resume" ).longOpt( "resume" )
+                .desc( "Skip the experiments completed by a previous run, as recorded in fvAnalysis.journal.txt, "
+                        + "and append to its output files" ).build() );
+        options.addOption( Option.builder( "threads" ).hasArg().argName( "numThreads" )
+                .desc( "Number of experiments to classify concurrently (default 1)" ).build() );
+    }
+
+    @Override
+    protected void processExperimentOptions( CommandLine commandLine ) {
+        super.processExperimentOptions( commandLine );
+        this.resume = commandLine.hasOption( "resume" );
+        if ( commandLine.hasOption( "threads" ) ) {
+            this.numThreads = Integer.parseInt( commandLine.getOptionValue( "threads" ) );
+            if ( this.numThreads < 1 ) {
+                throw new IllegalArgumentException( "Number of threads must be at least 1" );
+            }
+        }
+    }
+
     @Override
     protected void doAuthenticatedWork() throws Exception {
 
         log.info( "Starting examining experiments ..." );
 
+        journal = new Journal( Paths.get( "fvAnalysis.journal.txt" ), resume );
+        List<String> previousFiles = journal.getLastOutputFiles();
+        if ( resume && previousFiles.size() == 2 ) {
+            remappingFile = Paths.get( previousFiles.get( 0 ) );
+            unresolvedFile = Paths.get( previousFiles.get( 1 ) );
+            log.info( "Appending to " + remappingFile + " and " + unresolvedFile );
+        } else {
+            String suffix = new Date().toString().replace( " ", "_" ).replace( ":", "_" ) + ".tsv";
+            remappingFile = Paths.get( "remapping-" + suffix );
+            unresolvedFile = Paths.get( "unresolved-" + suffix );
+        }
+        remappingWriter = openOutputFile( remappingFile );
+        unresolvedWriter = openOutputFile( unresolvedFile );
+
         // this.ontologyService = this.getBean( OntologyService.class );
 
 //        try {
@@ -80,574 +202,535 @@ public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManip
 //            throw new RuntimeException( e );
 //        }
 
-        super.doAuthenticatedWork();
+        if ( numThreads > 1 ) {
+            log.info( "Classifying up to " + numThreads + " experiments concurrently" );
+            // workers need the authentication of the thread running the CLI
+            executor = new DelegatingSecurityContextExecutorService( Executors.newFixedThreadPool( numThreads,
+                    new BasicThreadFactory.Builder().namingPattern( "fvAnalysis-%d" ).build() ) );
+        }
+
+        try {
+            try {
+                super.doAuthenticatedWork();
+            } finally {
+                awaitPendingExperiments();
+            }
+        } finally {
+            remappingWriter.close();
+            unresolvedWriter.close();
+            journal.close();
+        }
 
-        System.err.println( "Total experiments examined = " + experimentsExamined );
+        if ( resume ) {
+            System.err.println( "Totals below only cover experiments examined in this run; " + journal.getNumCompleted() + " experiments are completed overall" );
+        }
+        long numDuplex = this.numDuplex.sum();
+        long nosolution = this.nosolution.sum();
+        System.err.println( "Total experiments examined = " + experimentsExamined.sum() );
         System.err.println( "Total two-characteristic factor values = " + numDuplex + " of which " + ( numDuplex - nosolution ) + " had a solution (" + String.format( "%.2f", 100.0 * ( 1.0 - ( double ) nosolution / numDuplex ) ) + "%)" );
-        System.err.println( "Total singleton factor values = " + numSingletons );
-        System.err.println( "Total multiplex factor values = " + numMultiplex );
+        System.err.println( "Total singleton factor values = " + numSingletons.sum() );
+        System.err.println( "Total multiplex factor values = " + numMultiplex.sum() );
 
-        /*
-        Iterate over results and call tabularize() on each ri, and print to a file.
-         */
-        try {
-            String filename = "remapping-" + new Date().toString().replace( " ", "_" ).replace( ":", "_" ) + ".tsv";
-            BufferedWriter writer = Files.newBufferedWriter( Paths.get( filename ) );
-            writer.write( "Experiment\tExperiment ID\tFactorValue\tFVID\tSummary\tC1 ID\tC2 ID\tSubjectCategory\tSubject\tPredicate\tObjectCategory\tObject\n" );
-            for ( RemappingInfo ri : results ) {
-                String c = ri.tabularize();
-                if ( c == null ) continue;
-                writer.write( c + "\n" );
+        System.err.println( "Wrote results to " + remappingFile );
+        System.err.println( "Wrote unresolved to " + unresolvedFile );
+    }
+
+    /**
+     * Open an output file; when resuming, an existing file is appended to, once the lines of the experiments the
+     * previous run did not complete are dropped.
+     */
+    private BufferedWriter openOutputFile( Path file ) throws IOException {
+        if ( resume && Files.exists( file ) ) {
+            int dropped = journal.dropIncomplete( file, 1 );
+            if ( dropped > 0 ) {
+                log.warn( "Dropped " + dropped + " lines of experiments that were not completed from " + file );
             }
-            writer.close();
-            System.err.println( "Wrote results to " + Paths.get( filename ) );
-        } catch ( IOException e ) {
-            throw new RuntimeException( e );
+            return Files.newBufferedWriter( file, StandardOpenOption.APPEND );
         }
+        BufferedWriter writer = Files.newBufferedWriter( file );
+        writer.write( HEADER );
+        return writer;
+    }
 
+    /**
+     * Obtain the design of an experiment with its factors, from the prefetched designs if possible.
+     */
+    private ExperimentalDesign getExperimentalDesign( ExpressionExperiment ee ) {
+        Long edId = ee.getExperimentalDesign().getId();
+        ExperimentalDesign ed = prefetchedDesigns.remove( edId );
+        if ( ed == null && toPrefetch.hasNext() ) {
+            prefetchDesigns();
+            ed = prefetchedDesigns.remove( edId );
+        }
+        if ( ed == null ) {
+            // the experiments are not processed in the order they were given
+            ed = eds.loadWithExperimentalFactors( edId );
+        }
+        return ed;
+    }
 
-        try {
-            String filename = "unresolved-" + new Date().toString().replace( " ", "_" ).replace( ":", "_" ) + ".tsv";
-            BufferedWriter writer = Files.newBufferedWriter( Paths.get( filename ) );
-            writer.write( "Experiment\tExperiment ID\tFactorValue\tFVID\tSummary\tC1 ID\tC2 ID\tSubjectCategory\tSubject\tPredicate\tObjectCategory\tObject\n" );
-            for ( RemappingInfo ri : unresolved ) {
-                String c = ri.tabularize();
-                if ( c == null ) continue;
-                writer.write( c + "\n" );
+    /**
+     * Load the designs of the next batch of experiments. Designs that were prefetched but not used yet are dropped.
+     */
+    private void prefetchDesigns() {
+        Set<Long> ids = new HashSet<>();
+        while ( toPrefetch.hasNext() && ids.size() < DESIGN_BATCH_SIZE ) {
+            ExpressionExperiment ee = toPrefetch.next();
+            if ( ee.getExperimentalDesign() != null ) {
+                ids.add( ee.getExperimentalDesign().getId() );
             }
-            writer.close();
-            System.err.println( "Wrote unresolved to " + Paths.get( filename ) );
-        } catch ( IOException e ) {
-            throw new RuntimeException( e );
         }
+        prefetchedDesigns.clear();
+        if ( ids.isEmpty() ) {
+            return;
+        }
+        for ( ExperimentalDesign ed : helperService.loadWithExperimentalFactors( ids ) ) {
+            prefetchedDesigns.put( ed.getId(), ed );
+        }
+        log.debug( "Prefetched " + prefetchedDesigns.size() + " experimental designs" );
+    }
+
+    /**
+     * Append the tabularized results of an experiment to an output file.
+     */
+    private void writeResults( BufferedWriter writer, Collection<RemappingInfo> ris ) throws IOException {
+        for ( RemappingInfo ri : ris ) {
+            String c = ri.tabularize();
+            if ( c == null ) continue;
+            writer.write( c + "\n" );
+        }
+        writer.flush();
     }
 
     @Override
     protected void processBioAssaySets( Collection<BioAssaySet> expressionExperiments ) {
         numExperiments = expressionExperiments.size();
+        List<ExpressionExperiment> ees = new ArrayList<>( expressionExperiments.size() );
+        for ( BioAssaySet bas : expressionExperiments ) {
+            if ( bas instanceof ExpressionExperiment && !journal.isCompleted( bas.getId() ) ) {
+                ees.add( ( ExpressionExperiment ) bas );
+            }
+        }
+        toPrefetch = ees.iterator();
         super.processBioAssaySets( expressionExperiments );
     }
 
+    /**
+     * The design of the experiment is loaded here, then the experiment is queued on the worker pool if one is
+     * configured, otherwise it is classified immediately.
+     */
     @Override
     protected void processExpressionExperiment( ExpressionExperiment ee ) throws Exception {
-        if ( experimentsExamined > 0 && experimentsExamined % 500 == 0 ) {
-            log.info( "Processed " + experimentsExamined + " experiments / " + numExperiments );
+        if ( journal.isCompleted( ee.getId() ) ) {
+            return;
+        }
+
+        long examined = experimentsExamined.sum();
+        if ( examined > 0 && examined % 500 == 0 ) {
+            log.info( "Processed " + examined + " experiments / " + numExperiments );
         }
 
+        ExperimentalDesign ed;
         try {
+            // retrieve the experimental factors
+            ed = getExperimentalDesign( ee );
+        } catch ( Exception e ) {
+            // not recorded in the journal, so that a resumed run tries again
+            log.error( e, e );
+            this.addErrorObject( ee + ": " + e.getMessage(), "" );
+            reportFinishedExperiments();
+            return;
+        }
 
-            boolean success = false;
+        if ( executor != null ) {
+            pendingExperiments.put( ee, executor.submit( () -> {
+                try {
+                    classifyExperiment( ee, ed );
+                } catch ( IOException e ) {
+                    log.error( "Failed to write the results of " + ee, e );
+                    reportError( ee + ": " + e.getMessage() );
+                }
+            } ) );
+        } else {
+            classifyExperiment( ee, ed );
+        }
+        reportFinishedExperiments();
+    }
 
-            // retrieve the experimental factors
-            ExperimentalDesign ed = eds.loadWithExperimentalFactors( ee.getExperimentalDesign().getId() );
+    private void reportError( String message ) {
+        pendingReports.add( () -> this.addErrorObject( message, "" ) );
+    }
 
+    /**
+     * Report the errors of the experiments finished so far. Failures that escaped the classification of an experiment,
+     * such as an {@link Error} on a worker, are reported as errors. This must only be called by the thread running
+     * the CLI.
+     */
+    private void reportFinishedExperiments() {
+        for ( Iterator<Map.Entry<ExpressionExperiment, Future<?>>> it = pendingExperiments.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<ExpressionExperiment, Future<?>> e = it.next();
+            if ( !e.getValue().isDone() ) {
+                continue;
+            }
+            it.remove();
+            try {
+                e.getValue().get();
+            } catch ( ExecutionException ex ) {
+                log.error( "Classification of " + e.getKey() + " failed", ex.getCause() );
+                reportError( e.getKey() + ": " + ex.getCause() );
+            } catch ( InterruptedException ex ) {
+                // cannot happen, the task is done
+                Thread.currentThread().interrupt();
+            }
+        }
+        Runnable report;
+        while ( ( report = pendingReports.poll() ) != null ) {
+            report.run();
+        }
+    }
+
+    /**
+     * Wait for all queued experiments to be completed, so that the output files can be safely closed.
+     */
+    private void awaitPendingExperiments() throws InterruptedException {
+        if ( executor == null ) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            while ( !executor.awaitTermination( 1, TimeUnit.MINUTES ) ) {
+                log.debug( "Waiting for queued experiments to complete..." );
+            }
+        } catch ( InterruptedException e ) {
+            executor.shutdownNow();
+            throw e;
+        } finally {
+            executor = null;
+            reportFinishedExperiments();
+        }
+    }
+
+    /**
+     * Classify the factor values of an experiment and write out the results.
+     *
+     * @param ed the design of the experiment
+     */
+    private void classifyExperiment( ExpressionExperiment ee, ExperimentalDesign ed ) throws IOException {
+        List<RemappingInfo> results = new ArrayList<>();
+        List<RemappingInfo> unresolved = new ArrayList<>();
+        try {
             if ( !ed.getExperimentalFactors().isEmpty() ) {
-                experimentsExamined++;
+                experimentsExamined.increment();
                 // log.info( "Processing: " + ee );
                 // System.out.println( "================" );
             }
 
             for ( ExperimentalFactor factor : ed.getExperimentalFactors() ) {
                 for ( FactorValue fv : factor.getFactorValues() ) {
+                    classify( ee, fv, results, unresolved );
+                }
+            }
+        } catch ( Exception e ) {
+            log.error( e, e );
+            reportError( ee + ": " + e.getMessage() );
+        }
 
-                    if ( fv.getCharacteristics().size() <= 1 ) {
-                        numSingletons++;
-                        continue;
-                    }
-
-                    boolean solved = false;
-                    RemappingInfo ri = new RemappingInfo( ee, fv ); // note: for some complex cases we will recreate this
-
-
-                    /*
-                     * Handle cases like If there two characteristics, and one is Dose and one is Treatment, print it out like Treatment has_dose Dose
-                     */
-                    if ( fv.getCharacteristics().size() == 2 ) {
-
-                        numDuplex++;
-
-                        Characteristic[] cs = fv.getCharacteristics().toArray( new Characteristic[0] );
-                        Characteristic cs1 = cs[0];
-                        Characteristic cs2 = cs[1];
-
-                        // drug - dose
-                        if ( cs1.getCategory() != null && cs1.getCategory().equals( "dose" ) && cs2.getCategory() != null && cs2.getCategory().equals( "treatment" ) ) {
-                            ri.summary = "Treatment-dose";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "has_dose";
-                            solved = true;
-                        } else if ( cs2.getCategory() != null && cs2.getCategory().equals( "dose" ) && cs1.getCategory() != null && cs1.getCategory().equals( "treatment" ) ) {
-                            ri.summary = "Treatment-dose";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "has_dose";
-                            solved = true;
-
-                            /* case where we have a dose but the other thing isn't obviously a drug - we just treat it as the modifier anyway */
-                        } else if ( cs1.getCategory() != null && cs1.getCategory().equals( "dose" ) ) {
-                            ri.summary = "Generic dosing ";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "has_dose";
-                            solved = true;
-
-                        } else if ( cs2.getCategory() != null && cs2.getCategory().equals( "dose" ) ) {
-                            ri.summary = "Generic dosing ";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "has_dose";
-                            solved = true;
-
-
-                            // gene - `genotype -- assumine the genotype is a genetic manipulation or some details of the genotype.
-                        } else if ( isGene( cs1 ) &&
-                                cs2.getCategory() != null && cs2.getCategory().equals( "genotype" ) ) {
-                            ri.summary = "Genotype ";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "has_genotype";
-                            solved = true;
-
-
-                        } else if ( isGene( cs2 ) &&
-                                cs1.getCategory() != null && cs1.getCategory().equals( "genotype" ) ) {
-                            ri.summary = "Genotype ";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "has_genotype";
-                            solved = true;
-
-                        }
-
-
-                                /*
-                                A cell type and a cell line. We assume this means "this cell type from this cell line"
-                                 */
-                        else if ( cs1.getCategory() != null && cs1.getCategory().equals( "cell type" ) && cs2.getCategory() != null && cs2.getCategory().equals( "cell line" ) ) {
-                            ri.summary = "Cell type+line";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "from_cell_line";
-                            solved = true;
-
-                        } else if ( cs2.getCategory() != null && cs2.getCategory().equals( "cell type" ) && cs1.getCategory() != null && cs1.getCategory().equals( "cell line" ) ) {
-                            ri.summary = "Cell type+line";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "from_cell_line";
-                            solved = true;
-
-                        }
-
-
-                        // developmental stages described by free text
-                        else if ( cs1.getCategory() != null && cs1.getCategory().equals( "developmental stage" ) && isDevelopmentalStage( cs1 ) &&
-                                cs2.getCategory() != null && cs2.getCategory().equals( "developmental stage" ) && cs2.getValueUri() == null ) {
-                            ri.summary = "Stage";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "has_stage";
-                            solved = true;
-
-
-                        } else if ( cs2.getCategory() != null && cs2.getCategory().equals( "developmental stage" ) && isDevelopmentalStage( cs2 ) &&
-                                cs1.getCategory() != null && cs1.getCategory().equals( "developmental stage" ) && cs1.getValueUri() == null ) {
-                            ri.summary = "Stage";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "has_stage";
-                            solved = true;
-                        }
-
-                        // an UBERON term and a location modifier
-                        else if ( cs1.getCategory() != null && cs1.getCategory().equals( "organism part" ) && isLocation( cs2 ) ) {
-                            ri.summary = "OrganismPart location";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "has_location";
-                            solved = true;
-
-                        } else if ( cs2.getCategory() != null && cs2.getCategory().equals( "organism part" ) && isLocation( cs1 ) ) {
-                            ri.summary = "OrganismPart location";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "has_location";
-                            solved = true;
-                        }
-
-
-
-                                /*  disease in an organism part (location)
-                                *
-                                * FactorValue 134421: phenotype:kidney | disease related to solid organ transplantation |
- - c - organism part: kidney http://purl.obolibrary.org/obo/UBERON_0002113
- - c - disease: disease related to solid organ transplantation http://purl.obolibrary.org/obo/MONDO_0700221 */
-
-                        else if ( cs1.getCategory() != null && cs1.getCategory().equals( "organism part" ) && cs2.getCategory() != null && isDisease( cs2 ) ) {
-                            ri.summary = "Disease in part";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "has_location";
-                            solved = true;
-
-                        } else if ( cs2.getCategory() != null && cs2.getCategory().equals( "organism part" ) && cs1.getCategory() != null && isDisease( cs1 ) ) {
-                            ri.summary = "Disease in part";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "has_location";
-                            solved = true;
-
-                        }
-
-
-                        /* disease + stage */
-                        else if ( cs1.getCategory() != null && cs1.getCategory().equals( "disease staging" ) && isDisease( cs2 ) ) {
-                            ri.summary = "Disease stage";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "has_stage";
-                            solved = true;
-
-                        } else if ( cs2.getCategory() != null && cs2.getCategory().equals( "disease staging" ) && isDisease( cs1 ) ) {
-                            ri.summary = "Disease stage";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "has_stage";
-                            solved = true;
-
-                        }
-
-
-
-
-
-                        /* disease + modifier */
-                        else if ( isDiseaseModifier( cs1 ) && isDisease( cs2 ) ) {
-                            ri.summary = "Disease with modifier";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "has_modifier";
-                            solved = true;
-
-                        } else if ( isDiseaseModifier( cs2 ) && isDisease( cs1 ) ) {
-                            ri.summary = "Disease with modifier";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "has_modifier";
-                            solved = true;
-
-                        }
-
-
-                        /* cell type from a particular organism part */
-                                /*
-                                 - c - organism part: astrocyte http://purl.obolibrary.org/obo/CL_0000127
-                                 - c - organism part: prefrontal cortex http://purl.obolibrary.org/obo/UBERON_0000451
-
-                                 */
-                        else if ( cs1.getCategory() != null && cs1.getCategory().equals( "organism part" ) && cs2.getCategory() != null && cs2.getCategory().equals( "cell type" ) ) {
-                            ri.summary = "Cell type from part";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "from_location";
-                            solved = true;
-
-
-                        } else if ( cs2.getCategory() != null && cs2.getCategory().equals( "organism part" ) && cs1.getCategory() != null && cs1.getCategory().equals( "cell type" ) ) {
-                            ri.summary = "Cell type from part";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "from_location";
-                            solved = true;
-
-                        }
-
-
-                                /*  drug -> delivery (children of OBI "adding a material entity into a target"[http://purl.obolibrary.org/obo/OBI_0000274]?)
-                                    FactorValue 137132: treatment:sodium metaarsenite | intraperitoneal injection |
-                                    - c - treatment: sodium metaarsenite http://purl.obolibrary.org/obo/CHEBI_29678
-                                    - c - treatment: intraperitoneal injection http://purl.obolibrary.org/obo/OBI_0000281
-                                  */
-                        else if ( isDrug( cs2 ) && isDelivery( cs1 ) ) {
-                            ri.summary = "Drug with delivery";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "has_delivery";
-                            solved = true;
-
-                        } else if ( isDrug( cs1 ) && isDelivery( cs2 ) ) {
-                            ri.summary = "Drug with delivery";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "has_delivery";
-                            solved = true;
-
-                        }
-
-
-                        // control + reference subject role etc. We assume that 'reference subject role' (or whatever) has_role 'control', I guess.
-                                /*
-                                FactorValue 144634: treatment:control | reference subject role |
- - c - treatment: control http://www.ebi.ac.uk/efo/EFO_0001461
- - c - treatment: reference subject role http://purl.obolibrary.org/obo/OBI_0000220
-
- FactorValue 147812: genotype:wild type genotype | control |
- - c - genotype: wild type genotype http://www.ebi.ac.uk/efo/EFO_0005168
- - c - genotype: control http://www.ebi.ac.uk/efo/EFO_0001461
-                                 */
-                        else if ( cs2.getValueUri() != null && cs2.getValueUri().equals( "http://www.ebi.ac.uk/efo/EFO_0001461" /*control*/ ) ) {
-                            ri.summary = "Control";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "has_role[?]";
-                            solved = true;
-
-                        } else if ( cs1.getValueUri() != null && cs1.getValueUri().equals( "http://www.ebi.ac.uk/efo/EFO_0001461" /*control*/ ) ) {
-                            ri.summary = "Control";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "has_role[?]";
-                            solved = true;
-                        }
-
-                                /*
-                                when we have two cell types, and one of them is either iPSC derived cell line or ESC derived cell line
-                                 */
-                        else if ( cs2.getCategory() != null && cs1.getCategory() != null && cs1.getCategory().equals( "cell type" ) && cs2.getCategory().equals( "cell type" ) ) {
-                            if ( cs1.getValueUri() != null && ( cs1.getValueUri().equals( "http://www.ebi.ac.uk/efo/EFO_0005738" ) || cs1.getValueUri().equals( "http://www.ebi.ac.uk/efo/EFO_0005740" ) ) ) {
-                                ri.summary = "Derived cells";
-                                ri.subject = cs1;
-                                ri.object = cs2;
-                                ri.predicate = "cell_derived_from";
-                                solved = true;
-
-                            } else if ( cs2.getValueUri() != null && ( cs2.getValueUri().equals( "http://www.ebi.ac.uk/efo/EFO_0005738" ) || cs2.getValueUri().equals( "http://www.ebi.ac.uk/efo/EFO_0005740" ) ) ) {
-                                ri.summary = "Derived cells";
-                                ri.subject = cs2;
-                                ri.object = cs1;
-                                ri.predicate = "cell_derived_from";
-                                solved = true;
-
-                            }
-                        }
-
-
-
-                                   /*  chemical has_role reference substance role
-                                --------------------
-                                FactorValue 165331: treatment:reference substance role | DMSO |
-                                    - c - treatment: reference substance role http://purl.obolibrary.org/obo/OBI_0000025
-                                 - c - treatment: DMSO http://purl.obolibrary.org/obo/CHEBI_2826
-                                 and so on:
-
-                                 FactorValue 186321: phenotype:asynchronous | reference subject role |
-                                - c - phenotype: asynchronous http://purl.obolibrary.org/obo/PATO_0000688
-                                   - c - phenotype: reference subject role http://purl.obolibrary.org/obo/OBI_0000220
-
-
-                                iment Id=23348 Name=Transcriptomic analysis of corticosteroids-treated hiPSC-derived RPE cells Short Name=GSE172478
-                                FactorValue 187865: treatment:ethanol | reference substance role |
-                                - c - treatment: ethanol http://purl.obolibrary.org/obo/CHEBI_16236
-                                    - c - treatment: reference substance role http://purl.obolibrary.org/obo/OBI_0000025
-                                 */
-                        else if ( isControlCondition( cs1 ) ) {
-                            ri.summary = "Control";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "has_role";
-                            solved = true;
-
-                        } else if ( isControlCondition( cs2 ) ) {
-                            ri.summary = "Control";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "has_role";
-                            solved = true;
-
-                        }
-
-                        /* something and a timepoint where we don't really know what the other thing is*/
-                        else if ( isTimepoint( cs1 ) && !isTimepoint( cs2 ) ) {
-                            ri.summary = "Timepoint";
-                            ri.object = cs1;
-                            ri.subject = cs2;
-                            ri.predicate = "has_timepoint";
-                            solved = true;
-                        } else if ( isTimepoint( cs2 ) && !isTimepoint( cs1 ) ) {
-                            ri.summary = "Timepoint";
-                            ri.object = cs2;
-                            ri.subject = cs1;
-                            ri.predicate = "has_timepoint";
-                            solved = true;
-
-                        }
-
-
-                        // somewhat generic case of where there is a physical object property or occurrence type of term, which we treat as the modifier.
-                        // The exception here is when one is free text, is might be a dose or details like for "radiation exposure"
-                        else if ( isQualityProperty( cs1 ) ) {
-
-                            if ( cs2.getValueUri() == null ) {
-                                // then print is as cs1 cs2
-                                ri.summary = "Property";
-                                ri.subject = cs1;
-                                ri.object = cs2;
-                                ri.predicate = "has_property[?]";
-                                solved = true;
-
-                            } else {
-                                // also not quite clear - cs2 is free text.
-                                ri.summary = "Physical property";
-                                ri.subject = cs2;
-                                ri.object = cs1;
-                                ri.predicate = "has_property[?]";
-                                solved = true;
-
-                            }
-
-                        } else if ( isQualityProperty( cs2 ) ) {
-                            if ( cs1.getValueUri() == null ) {
-                                ri.summary = "Property";
-                                ri.subject = cs2;
-                                ri.object = cs1;
-                                ri.predicate = "has_property[?]";
-                                solved = true;
-
-                            } else {
-                                ri.summary = "Physical property";
-                                ri.subject = cs1;
-                                ri.object = cs2;
-                                ri.predicate = "has_property[?]";
-                                solved = true;
-
-                            }
-                        } // FIXME also deal with children of http://purl.obolibrary.org/obo/PATO_0000069 - deviation (from_normal)
+        // errors come from the annotations themselves and would recur, so the experiment is recorded regardless
+        writeExperiment( ee, results, unresolved );
+    }
 
+    /**
+     * Append the results of an experiment to the output files, then record it in the journal. Experiments are written
+     * one at a time, so that their lines are not interleaved.
+     */
+    private synchronized void writeExperiment( ExpressionExperiment ee, List<RemappingInfo> results, List<RemappingInfo> unresolved ) throws IOException {
+        writeResults( remappingWriter, results );
+        writeResults( unresolvedWriter, unresolved );
+        journal.record( ee.getId(), remappingFile.toString(), unresolvedFile.toString() );
+    }
 
+    /*
+     * Features of a characteristic, computed once by features() so that the rules below are plain bitmask tests.
+     */
+    private static final int NO_CATEGORY = 1;
+    private static final int FREE_TEXT = 1 << 1; // no value URI
+    private static final int DOSE = 1 << 2;
+    private static final int TREATMENT = 1 << 3;
+    private static final int GENOTYPE = 1 << 4;
+    private static final int CELL_TYPE = 1 << 5;
+    private static final int CELL_LINE = 1 << 6;
+    private static final int DEVELOPMENTAL_STAGE = 1 << 7;
+    private static final int ORGANISM_PART = 1 << 8;
+    private static final int DISEASE_STAGING = 1 << 9;
+    private static final int TIMEPOINT = 1 << 10;
+    private static final int GENE = 1 << 11;
+    private static final int DRUG = 1 << 12;
+    private static final int DISEASE = 1 << 13;
+    private static final int DELIVERY = 1 << 14;
+    private static final int QUALITY_PROPERTY = 1 << 15;
+    private static final int DISEASE_MODIFIER = 1 << 16;
+    private static final int STAGE_TERM = 1 << 17;
+    private static final int LOCATION = 1 << 18;
+    private static final int CONTROL_TERM = 1 << 19;
+    private static final int DERIVED_CELLS = 1 << 20;
+    private static final int CONTROL_CONDITION = 1 << 21;
+    private static final int GENETIC_MANIPULATION = 1 << 22;
+    private static final int GENE_FUSION = 1 << 23;
+
+    private static final Map<String, Integer> CATEGORY_FEATURES = new HashMap<>();
+
+    static {
+        CATEGORY_FEATURES.put( "dose", DOSE );
+        CATEGORY_FEATURES.put( "treatment", TREATMENT );
+        CATEGORY_FEATURES.put( "genotype", GENOTYPE );
+        CATEGORY_FEATURES.put( "cell type", CELL_TYPE );
+        CATEGORY_FEATURES.put( "cell line", CELL_LINE );
+        CATEGORY_FEATURES.put( "developmental stage", DEVELOPMENTAL_STAGE );
+        CATEGORY_FEATURES.put( "organism part", ORGANISM_PART );
+        CATEGORY_FEATURES.put( "disease staging", DISEASE_STAGING );
+        CATEGORY_FEATURES.put( "timepoint", TIMEPOINT );
+    }
 
-                                /*
-                                If it's just two drugs, we can't do anything, it's just how it is.
-                                 */
-                        else if ( isDrug( cs1 ) && isDrug( cs2 ) ) {
-                            // we count this as solved.
-                            ri.summary = "Two unrelated drugs";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = null;
-                            solved = true;
+    /**
+     * Rules for factor values with two characteristics, in order of precedence. Each rule is tried with the
+     * characteristics in their original order, then swapped, before moving on to the next one; the first rule that
+     * matches decides.
+     */
+    private static final Rule[] DUPLEX_RULES = {
+            // drug - dose
+            new Rule( DOSE, TREATMENT, "Treatment-dose", "has_dose", false ),
+            // case where we have a dose but the other thing isn't obviously a drug - we just treat it as the modifier anyway
+            new Rule( DOSE, 0, "Generic dosing ", "has_dose", false ),
+            // gene - genotype -- assuming the genotype is a genetic manipulation or some details of the genotype.
+            new Rule( GENE, GENOTYPE, "Genotype ", "has_genotype", true ),
+            // A cell type and a cell line. We assume this means "this cell type from this cell line"
+            new Rule( CELL_TYPE, CELL_LINE, "Cell type+line", "from_cell_line", true ),
+            // developmental stages described by free text
+            new Rule( DEVELOPMENTAL_STAGE | STAGE_TERM, DEVELOPMENTAL_STAGE | FREE_TEXT, "Stage", "has_stage", true ),
+            // an UBERON term and a location modifier
+            new Rule( ORGANISM_PART, LOCATION, "OrganismPart location", "has_location", true ),
+            /*  disease in an organism part (location)
+             *
+             * FactorValue 134421: phenotype:kidney | disease related to solid organ transplantation |
+             * - c - organism part: kidney http://purl.obolibrary.org/obo/UBERON_0002113
+             * - c - disease: disease related to solid organ transplantation http://purl.obolibrary.org/obo/MONDO_0700221
+             */
+            new Rule( ORGANISM_PART, DISEASE, "Disease in part", "has_location", false ).excluding( 0, NO_CATEGORY ),
+            /* disease + stage */
+            new Rule( DISEASE_STAGING, DISEASE, "Disease stage", "has_stage", false ),
+            /* disease + modifier */
+            new Rule( DISEASE_MODIFIER, DISEASE, "Disease with modifier", "has_modifier", false ),
+            /* cell type from a particular organism part
+             * - c - organism part: astrocyte http://purl.obolibrary.org/obo/CL_0000127
+             * - c - organism part: prefrontal cortex http://purl.obolibrary.org/obo/UBERON_0000451
+             */
+            new Rule( ORGANISM_PART, CELL_TYPE, "Cell type from part", "from_location", false ),
+            /*  drug -> delivery (children of OBI "adding a material entity into a target"[http://purl.obolibrary.org/obo/OBI_0000274]?)
+             * FactorValue 137132: treatment:sodium metaarsenite | intraperitoneal injection |
+             * - c - treatment: sodium metaarsenite http://purl.obolibrary.org/obo/CHEBI_29678
+             * - c - treatment: intraperitoneal injection http://purl.obolibrary.org/obo/OBI_0000281
+             */
+            new Rule( DELIVERY, DRUG, "Drug with delivery", "has_delivery", false ),
+            /* control + reference subject role etc. We assume that 'reference subject role' (or whatever) has_role 'control', I guess.
+             * FactorValue 144634: treatment:control | reference subject role |
+             * - c - treatment: control http://www.ebi.ac.uk/efo/EFO_0001461
+             * - c - treatment: reference subject role http://purl.obolibrary.org/obo/OBI_0000220
+             */
+            new Rule( 0, CONTROL_TERM, "Control", "has_role[?]", true ),
+            // when we have two cell types, and one of them is either iPSC derived cell line or ESC derived cell line
+            new Rule( CELL_TYPE | DERIVED_CELLS, CELL_TYPE, "Derived cells", "cell_derived_from", true ),
+            // any other pair of cell types is left unresolved, without counting it as having no solution
+            new Rule( CELL_TYPE, CELL_TYPE, null, null, true ),
+            /*  chemical has_role reference substance role
+             * FactorValue 165331: treatment:reference substance role | DMSO |
+             * - c - treatment: reference substance role http://purl.obolibrary.org/obo/OBI_0000025
+             * - c - treatment: DMSO http://purl.obolibrary.org/obo/CHEBI_2826
+             */
+            new Rule( CONTROL_CONDITION, 0, "Control", "has_role", false ),
+            /* something and a timepoint where we don't really know what the other thing is */
+            new Rule( TIMEPOINT, 0, "Timepoint", "has_timepoint", false ).excluding( 0, TIMEPOINT ),
+            // somewhat generic case of where there is a physical object property or occurrence type of term, which we treat as the modifier.
+            // The exception here is when one is free text, is might be a dose or details like for "radiation exposure"
+            new Rule( QUALITY_PROPERTY, FREE_TEXT, "Property", "has_property[?]", true ),
+            new Rule( QUALITY_PROPERTY, 0, "Physical property", "has_property[?]", false ),
+            // FIXME also deal with children of http://purl.obolibrary.org/obo/PATO_0000069 - deviation (from_normal)
+            /* If it's just two drugs, we can't do anything, it's just how it is; we count this as solved. */
+            new Rule( DRUG, DRUG, "Two unrelated drugs", null, true ),
+            // fall through to generic case where one value is an ontology term and the other is free text. We assume the free text is the modifier.
+            new Rule( 0, FREE_TEXT, "Generic", "has_modifier[?]", true ).excluding( FREE_TEXT, 0 )
+    };
+
+    /**
+     * Look for a way to express the characteristics of a factor value as a statement, and update the counts of factor
+     * values accordingly.
+     *
+     * @param results    receives the solutions found
+     * @param unresolved receives the factor value if no solution was found
+     */
+    void classify( ExpressionExperiment ee, FactorValue fv, List<RemappingInfo> results, List<RemappingInfo> unresolved ) {
+        if ( fv.getCharacteristics().size() <= 1 ) {
+            numSingletons.increment();
+            return;
+        }
 
-                        }
+        boolean solved = false;
+        RemappingInfo ri = new RemappingInfo( ee, fv ); // note: for some complex cases we will recreate this
 
+        Characteristic[] cs = fv.getCharacteristics().toArray( new Characteristic[0] );
+        int[] features = new int[cs.length];
+        for ( int i = 0; i < cs.length; i++ ) {
+            features[i] = features( cs[i] );
+        }
 
-                        // fall through to generic case where one value is an ontology term and the other is free text. We assume the free text is the modifier.
-                        else if ( cs1.getValueUri() != null && cs2.getValueUri() == null ) {
-                            ri.summary = "Generic";
-                            ri.subject = cs1;
-                            ri.object = cs2;
-                            ri.predicate = "has_modifier[?]";
-                            solved = true;
+        if ( cs.length == 2 ) {
 
+            numDuplex.increment();
 
-                        } else if ( cs2.getValueUri() != null && cs1.getValueUri() == null ) {
-                            ri.summary = "Generic";
-                            ri.subject = cs2;
-                            ri.object = cs1;
-                            ri.predicate = "has_modifier[?]";
-                            solved = true;
+            Rule rule = null;
+            boolean swapped = false;
+            for ( Rule r : DUPLEX_RULES ) {
+                if ( r.matches( features[0], features[1] ) ) {
+                    rule = r;
+                    break;
+                } else if ( r.matches( features[1], features[0] ) ) {
+                    rule = r;
+                    swapped = true;
+                    break;
+                }
+            }
 
+            if ( rule == null ) {
+                nosolution.increment();
+            } else if ( rule.summary != null ) {
+                Characteristic a = swapped ? cs[1] : cs[0];
+                Characteristic b = swapped ? cs[0] : cs[1];
+                ri.summary = rule.summary;
+                ri.subject = rule.subjectIsA ? a : b;
+                ri.object = rule.subjectIsA ? b : a;
+                ri.predicate = rule.predicate;
+                solved = true;
+            }
 
-                        } else {
-                            solved = false;
-                            nosolution++;
-                        }
+        } else /* more than 2 characteristics */ {
+            numMultiplex.increment();
+
+            // case of one genetic modifier, and > 1 gene: assume modifier applies to each.
+            // which case, we need to duplicate the modifier
+            int numGenes = 0;
+            int geneticmodifier = -1;
+            int cf = -1;
+            for ( int i = 0; i < cs.length; i++ ) {
+                if ( ( features[i] & GENE ) != 0 ) {
+                    numGenes++;
+                } else if ( ( features[i] & GENETIC_MANIPULATION ) != 0 && geneticmodifier < 0 ) {
+                    geneticmodifier = i;
+                }
+                if ( ( features[i] & GENE_FUSION ) != 0 && cf < 0 ) {
+                    cf = i;
+                }
+            }
+            if ( geneticmodifier >= 0 && numGenes == cs.length - 1 ) {
+                // then we have a genetic modifier and a bunch of genes
+                // we need to duplicate the modifier
+                for ( int i = 0; i < cs.length; i++ ) {
+                    if ( i == geneticmodifier ) continue;
+                    ri = new RemappingInfo( ee, fv );
+                    ri.subject = cs[i];
+                    ri.predicate = "has_genetic_modifier";
+                    ri.object = cs[geneticmodifier]; // FIXME: we need to create a new copy of the modifier Characteristic!!
+                    ri.summary = "Genetic modifier [multigene]";
+                    results.add( ri );
+                }
+                log.info( "Resolve multi-gene genotype" );
+                // the results were added above, one per gene
+                return;
+            }
 
-                    } else /* more than 2 characteristics */ {
-                        numMultiplex++;
-
-                        // case of one genetic modifier, and > 1 gene: assume modifier applies to each.
-                        // which case, we need to duplicate the modifier
-                        int numGenes = 0;
-                        boolean hasgeneticmodifier = false;
-                        for ( Characteristic c : fv.getCharacteristics() ) {
-                            if ( isGene( c ) ) {
-                                numGenes++;
-                            } else if ( isGeneticManipulation( c ) ) {
-                                hasgeneticmodifier = true;
-                            }
-                        }
-                        if ( hasgeneticmodifier && numGenes == fv.getCharacteristics().size() - 1 ) {
-                            // then we have a genetic modifier and a bunch of genes
-                            // we need to duplicate the modifier
-                            Characteristic geneticmodifier = null;
-                            for ( Characteristic c : fv.getCharacteristics() ) {
-                                if ( isGeneticManipulation( c ) ) {
-                                    geneticmodifier = c;
-                                    break;
-                                }
-                            }
-                            if ( geneticmodifier == null ) {
-                                throw new IllegalStateException( "Didn't find genetic modifier for: " + ee + " " + fv );
-                            }
-                            for ( Characteristic c : fv.getCharacteristics() ) {
-                                if ( c.equals( geneticmodifier ) ) continue;
-                                ri = new RemappingInfo( ee, fv );
-                                ri.subject = c;
-                                ri.predicate = "has_genetic_modifier";
-                                ri.object = geneticmodifier; // FIXME: we need to create a new copy of the modifier Characteristic!!
-                                ri.summary = "Genetic modifier [multigene]";
-                                results.add( ri );
-                            }
-                            log.info( "Resolve multi-gene genotype" );
-                            solved = true;
-                        }
+            // look for fusion_gene and two genes
+            if ( !solved && cs.length == 3 && cf >= 0 ) {
+                ri.summary = "Gene fusion";
+                ri.predicate = "fusion_gene";
+                for ( int i = 0; i < cs.length; i++ ) {
+                    if ( i == cf ) continue;
+                    if ( ( features[i] & GENE ) != 0 ) {
+                        if ( ri.object == null )
+                            ri.object = cs[i]; // arbitrarily pick one gene to be the object.
+                        else ri.subject = cs[i];
+                    }
+                }
 
-                        // look for fusion_gene and two genes
-                        Characteristic cf = isGeneFusion( fv );
-                        if ( !solved && fv.getCharacteristics().size() == 3 && cf != null ) {
-                            boolean firstGene = true;
-                            ri.summary = "Gene fusion";
-                            ri.predicate = "fusion_gene";
-                            Characteristic[] characteristics = fv.getCharacteristics().toArray( new Characteristic[0] );
-                            for ( int i = 0; i < characteristics.length; i++ ) {
-                                Characteristic c = characteristics[i];
-                                if ( c.equals( cf ) ) continue;
-                                if ( isGene( c ) ) {
-                                    if ( ri.object == null )
-                                        ri.object = c; // arbitrarily pick one gene to be the object.
-                                    else ri.subject = c;
-                                }
-                            }
+                if ( ri.subject == null || ri.object == null || ri.predicate == null ) {
+                    throw new IllegalStateException( "Didn't find all three parts of the fusion for: " + ee + " " + fv );
+                }
 
-                            if ( ri.subject == null || ri.object == null || ri.predicate == null ) {
-                                throw new IllegalStateException( "Didn't find all three parts of the fusion for: " + ee + " " + fv );
-                            }
+                log.info( "Resolved gene fusion" );
+                solved = true;
+            }
+            //nosolution++; let's not count these yet
 
-                            log.info( "Resolved gene fusion" );
-                            solved = true;
-                        }
-                        //nosolution++; let's not count these yet
+        } // end inspections of the characteristics
 
-                        //solved = false;
 
+        if ( !solved ) {
+            // a single call, so that the reports of concurrent classifications are not interleaved
+            System.out.println( "--- Unsolved --\n" + ri );
+            unresolved.add( ri );
+        } else {
+            results.add( ri );
+        }
+    }
 
-                    } // end inspections of the characteristics
+    /**
+     * Compute the features of a characteristic the rules are matched against.
+     */
+    private int features( Characteristic c ) {
+        int f = 0;
+        if ( c.getCategory() == null ) {
+            f |= NO_CATEGORY;
+        } else {
+            f |= CATEGORY_FEATURES.getOrDefault( c.getCategory(), 0 );
+            if ( c.getCategory().toLowerCase().contains( "disease" ) ) f |= DISEASE; /* includes disease model */
+        }
+        if ( c.getValueUri() == null ) {
+            f |= FREE_TEXT;
+        } else {
+            f |= TERMS.features( c.getValueUri() );
+        }
+        if ( isControlCondition( c ) ) f |= CONTROL_CONDITION;
+        return f;
+    }
 
+    /**
+     * A rule relating two characteristics A and B, given the features each must have and must not have.
+     */
+    private static class Rule {
 
-                    if ( !solved ) {
-                        System.out.println( "--- Unsolved --" );
-                        System.out.println( ri );
-                        unresolved.add( ri );
-                    } else {
-                        results.add( ri );
-                    }
-                }
-            }
+        private final int requiredA, requiredB;
+        private int excludedA = 0, excludedB = 0;
+        /**
+         * Null if a pair matching the rule is left unresolved.
+         */
+        private final String summary;
+        private final String predicate;
+        private final boolean subjectIsA;
+
+        private Rule( int requiredA, int requiredB, String summary, String predicate, boolean subjectIsA ) {
+            this.requiredA = requiredA;
+            this.requiredB = requiredB;
+            this.summary = summary;
+            this.predicate = predicate;
+            this.subjectIsA = subjectIsA;
+        }
 
+        private Rule excluding( int excludedA, int excludedB ) {
+            this.excludedA = excludedA;
+            this.excludedB = excludedB;
+            return this;
+        }
 
-        } catch ( Exception e ) {
-            log.error( e, e );
-            this.addErrorObject( ee + ": " + e.getMessage(), "" );
+        private boolean matches( int a, int b ) {
+            return ( a & requiredA ) == requiredA && ( a & excludedA ) == 0
+                    && ( b & requiredB ) == requiredB && ( b & excludedB ) == 0;
         }
     }
 
@@ -656,54 +739,40 @@ public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManip
     }
 
     private static boolean isGene( Characteristic c ) {
-        return c.getValueUri() != null && c.getValueUri().contains( "ncbi_gene" );
-    }
-
-    private Characteristic isGeneFusion( FactorValue fv ) {
-        for ( Characteristic c : fv.getCharacteristics() ) {
-            if ( c.getValueUri() != null && c.getValueUri().equals( "http://purl.obolibrary.org/obo/SO_0000287" ) ) {
-                return c;
-            }
-        }
-        return null;
+        return TERMS.has( c.getValueUri(), GENE );
     }
 
 
     private boolean isDrug( Characteristic cs ) {
-        return cs.getValueUri() != null && cs.getValueUri().contains( "CHEBI_" );
+        return TERMS.has( cs.getValueUri(), DRUG );
     }
 
 
     private boolean isDisease( Characteristic cs ) {
-        return ( cs.getValueUri() != null && cs.getValueUri().contains( "MONDO_" ) ) || cs.getCategory().toLowerCase().contains( "disease" ); /* includes disease model */
+        return TERMS.has( cs.getValueUri(), DISEASE ) || ( cs.getCategory() != null && cs.getCategory().toLowerCase().contains( "disease" ) ); /* includes disease model */
     }
 
     private boolean isDelivery( Characteristic cs ) {
-        return ( cs.getValueUri() != null && addingMaterialentityToTargetTerms.contains( cs.getValueUri() ) );
+        return TERMS.has( cs.getValueUri(), DELIVERY );
     }
 
 
     private boolean isQualityProperty( Characteristic cs ) {
-        if ( cs.getValueUri() == null ) return false;
-        return qualityTerms.contains( cs.getValueUri() ) || deviationFromNormalTerms.contains( cs.getValueUri() );
+        return TERMS.has( cs.getValueUri(), QUALITY_PROPERTY );
     }
 
     // e.g. children of http://purl.obolibrary.org/obo/MONDO_0021125 - disease characteristic
     private boolean isDiseaseModifier( Characteristic cs ) {
-
-        if ( cs.getValueUri() == null ) return false;
-        return diseaseModifierTerms.contains( cs.getValueUri() );
+        return TERMS.has( cs.getValueUri(), DISEASE_MODIFIER );
     }
 
 
     private boolean isDevelopmentalStage( Characteristic cs ) {
-        return stageTerms.contains( cs.getValueUri() );
+        return TERMS.has( cs.getValueUri(), STAGE_TERM );
     }
 
     private boolean isLocation( Characteristic cs ) {
-        if ( cs.getValueUri() == null ) return false;
-        return locationTerms.contains( cs.getValueUri() ) || cs.getValueUri().contains( "PATO_" ) /*FIXME DON"T DO THIS */;
-
+        return TERMS.has( cs.getValueUri(), LOCATION );
     }
 
     private boolean isControlCondition( Characteristic cs ) {
@@ -712,10 +781,10 @@ public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManip
 
     private boolean isGeneticManipulation( Characteristic cs ) {
         // e.g. knockdown, knockout, overexpression
-        return cs.getValueUri() != null && geneticTerms.contains( cs.getValueUri() );
+        return TERMS.has( cs.getValueUri(), GENETIC_MANIPULATION );
     }
 
-    private final Set<String> geneticTerms = new HashSet<>( Arrays.asList(
+    private static final Set<String> geneticTerms = new HashSet<>( Arrays.asList(
             /*Dominant negative mutation */ "http://gemma.msl.ubc.ca/ont/TGEMO_00009",
             /*Constitutive active mutation */ "http://gemma.msl.ubc.ca/ont/TGEMO_00008",
             /*Knockdown */ "http://gemma.msl.ubc.ca/ont/TGEMO_00007",
@@ -728,7 +797,7 @@ public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManip
             /*Rescue by external protein */ "http://gemma.msl.ubc.ca/ont/TGEMO_00102"
     ) );
 
-    private final Set<String> stageTerms = new HashSet<>( Arrays.asList(
+    private static final Set<String> stageTerms = new HashSet<>( Arrays.asList(
             /*  http://purl.obolibrary.org/obo/UBERON_0000105 (life cycle stage)
                 and http://www.ebi.ac.uk/efo/EFO_0000399 (developmental stage) children */
             /* embryo stage */ "http://purl.obolibrary.org/obo/UBERON_0000068",
@@ -982,7 +1051,7 @@ public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManip
             /* embryonic day 16.5 */ "http://www.ebi.ac.uk/efo/EFO_0002567" ) );
 
 
-    private final Set<String> qualityTerms = new HashSet<>( Arrays.asList( /* maybe this is too broad */
+    private static final Set<String> qualityTerms = new HashSet<>( Arrays.asList( /* maybe this is too broad */
             /* occurrence */ "http://purl.obolibrary.org/obo/PATO_0000057", // occurrence terms
             /* decreased occurrence */ "http://purl.obolibrary.org/obo/PATO_0002052",
             /* arrested */ "http://purl.obolibrary.org/obo/PATO_0000297",
@@ -2671,7 +2740,7 @@ public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManip
             /* decreased object quality */ "http://purl.obolibrary.org/obo/PATO_0002303"
     ) );
 
-    private final Set<String> locationTerms = new HashSet<>( Arrays.asList(
+    private static final Set<String> locationTerms = new HashSet<>( Arrays.asList(
             /* prothoracic leg disc */ "http://purl.obolibrary.org/obo/FBbt_00001781",
             /* otic placode */ "http://purl.obolibrary.org/obo/UBERON_0003069",
             /* left */ "http://www.ebi.ac.uk/efo/EFO_0001658",
@@ -2722,7 +2791,7 @@ public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManip
             /* right */ "http://www.ebi.ac.uk/efo/EFO_0001659" ) );
 
 
-    private final Set<String> deviationFromNormalTerms = new HashSet<>( Arrays.asList(
+    private static final Set<String> deviationFromNormalTerms = new HashSet<>( Arrays.asList(
             /* deviation (from_normal) */ "http://purl.obolibrary.org/obo/PATO_0000069",
             /* decreased quality */ "http://purl.obolibrary.org/obo/PATO_0002301",
             /* decreased intensity */ "http://purl.obolibrary.org/obo/PATO_0001783",
@@ -2973,7 +3042,7 @@ public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManip
             /* pathological */ "http://purl.obolibrary.org/obo/PATO_0001869"
     ) );
 
-    private final Set<String> diseaseModifierTerms = new HashSet<>( Arrays.asList(
+    private static final Set<String> diseaseModifierTerms = new HashSet<>( Arrays.asList(
             /* has an isolated presentation */ "http://purl.obolibrary.org/obo/MONDO_0021128",
             /* classic or non-classic genetic disease presentation */ "http://purl.obolibrary.org/obo/MONDO_0100355",
             /* mosaic */ "http://purl.obolibrary.org/obo/MONDO_0700062",
@@ -3027,7 +3096,7 @@ public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManip
             /* remittent intensity */ "http://purl.obolibrary.org/obo/PATO_0001841"
     ) );
 
-    private final Set<String> addingMaterialentityToTargetTerms = new HashSet<>( Arrays.asList(
+    private static final Set<String> addingMaterialentityToTargetTerms = new HashSet<>( Arrays.asList(
             /* adding a material entity into a target */ "http://purl.obolibrary.org/obo/OBI_0000274",
             /* administering substance in vivo */ "http://purl.obolibrary.org/obo/OBI_0600007",
             /* passive immunization */ "http://purl.obolibrary.org/obo/OBI_0001174",
@@ -3058,7 +3127,26 @@ public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManip
             /* injection into organ section */ "http://purl.obolibrary.org/obo/OBI_0000431"
     ) );
 
-    private class RemappingInfo {
+    /**
+     * Features of the terms; must come after the term sets it is built from.
+     */
+    private static final TermIndex TERMS = new TermIndex()
+            .add( GENETIC_MANIPULATION, geneticTerms )
+            .add( STAGE_TERM, stageTerms )
+            .add( QUALITY_PROPERTY, qualityTerms )
+            .add( QUALITY_PROPERTY, deviationFromNormalTerms )
+            .add( LOCATION, locationTerms )
+            .add( DISEASE_MODIFIER, diseaseModifierTerms )
+            .add( DELIVERY, addingMaterialentityToTargetTerms )
+            .add( CONTROL_TERM, Collections.singleton( "http://www.ebi.ac.uk/efo/EFO_0001461" /*control*/ ) )
+            .add( DERIVED_CELLS, Arrays.asList( "http://www.ebi.ac.uk/efo/EFO_0005738", "http://www.ebi.ac.uk/efo/EFO_0005740" ) )
+            .add( GENE_FUSION, Collections.singleton( "http://purl.obolibrary.org/obo/SO_0000287" ) )
+            .addSubstring( GENE, "ncbi_gene" )
+            .addSubstring( DRUG, "CHEBI_" )
+            .addSubstring( DISEASE, "MONDO_" )
+            .addSubstring( LOCATION, "PATO_" ) /*FIXME DON"T DO THIS */;
+
+    class RemappingInfo {
 
         private FactorValue fv;
         private ExpressionExperiment ee;
@@ -3066,14 +3154,14 @@ public class FactorValueCharacteristicAnalysis extends ExpressionExperimentManip
         /* note that it is possible we would have more than one statement, but I'm assuming we have just one for now as
         more complicated cases (>2 characteristics) are going to be hard.
          */
-        private Characteristic subject = null;
-        private String predicate = null;
-        private Characteristic object = null;
+        Characteristic subject = null;
+        String predicate = null;
+        Characteristic object = null;
 
-        private String summary = null;
+        String summary = null;
 
 
-        public RemappingInfo( ExpressionExperiment ee, FactorValue fv ) {
+        RemappingInfo( ExpressionExperiment ee, FactorValue fv ) {
             this.ee = ee;
             this.fv = fv;
         }
@@ -0,0 +1,442 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.genome.Gene;
+import ubic.gemma.persistence.service.expression.arrayDesign.ArrayDesignService;
+import ubic.gemma.persistence.service.expression.designElement.CompositeSequenceService;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Probe to gene annotations of platforms, persisted on disk so that the platforms do not have to be thawed again in
+ * later runs.
+ * <p>
+ * There is one file per platform, named after its ID and the time it was last updated, so that the annotations are
+ * regenerated when the platform changes. Files are memory-mapped when a platform is first requested.
+ * <p>
+ * Mapped platforms are kept in memory up to a total number of probes, beyond which the least recently used ones are
+ * released.
+ * <p>
+ * This is thread-safe.
+ */
+public class GeneAnnotationCache {
+
+    private static final Log log = LogFactory.getLog( GeneAnnotationCache.class );
+
+    private static final int MAGIC = 0x47414341; // GACA
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".annot";
+
+    private final Path directory;
+    private final ArrayDesignService arrayDesignService;
+    private final CompositeSequenceService compositeSequenceService;
+
+    private final long maxProbes;
+
+    /**
+     * Platforms in memory, in access order; guarded by itself.
+     */
+    private final LinkedHashMap<Long, PlatformAnnotations> platforms = new LinkedHashMap<>( 16, 0.75f, true );
+    private long numProbes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Locks held while a platform is loaded, so that other platforms can be used in the meantime.
+     */
+    private final Map<Long, Object> loadLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Create a cache that keeps every platform it has loaded in memory.
+     *
+     * @param directory where the annotation files are kept; it is created if necessary
+     */
+    public GeneAnnotationCache( Path directory, ArrayDesignService arrayDesignService,
+            CompositeSequenceService compositeSequenceService ) throws IOException {
+        this( directory, Long.MAX_VALUE, arrayDesignService, compositeSequenceService );
+    }
+
+    /**
+     * @param directory where the annotation files are kept; it is created if necessary
+     * @param maxProbes total number of probes of the platforms kept in memory; the most recently used platform is
+     *                  always kept, even if it is larger
+     */
+    public GeneAnnotationCache( Path directory, long maxProbes, ArrayDesignService arrayDesignService,
+            CompositeSequenceService compositeSequenceService ) throws IOException {
+        if ( maxProbes < 1 ) {
+            throw new IllegalArgumentException( "The maximum number of probes must be positive." );
+        }
+        this.directory = Files.createDirectories( directory );
+        this.maxProbes = maxProbes;
+        this.arrayDesignService = arrayDesignService;
+        this.compositeSequenceService = compositeSequenceService;
+    }
+
+    /**
+     * Obtain the annotations of a platform, generating them if they are not cached or out of date.
+     */
+    public PlatformAnnotations get( ArrayDesign ad ) {
+        PlatformAnnotations pa = lookup( ad.getId(), true );
+        if ( pa != null ) {
+            return pa;
+        }
+        synchronized ( loadLocks.computeIfAbsent( ad.getId(), id -> new Object() ) ) {
+            // another thread might have loaded it while we were waiting
+            pa = lookup( ad.getId(), false );
+            if ( pa != null ) {
+                return pa;
+            }
+            try {
+                pa = load( ad );
+            } catch ( IOException e ) {
+                throw new UncheckedIOException( e );
+            }
+            synchronized ( platforms ) {
+                platforms.put( ad.getId(), pa );
+                numProbes += pa.size();
+                Iterator<PlatformAnnotations> it = platforms.values().iterator();
+                while ( numProbes > maxProbes && platforms.size() > 1 ) {
+                    PlatformAnnotations eldest = it.next();
+                    it.remove();
+                    numProbes -= eldest.size();
+                    evictions++;
+                }
+            }
+            return pa;
+        }
+    }
+
+    /**
+     * @param count whether to count the lookup as a hit or a miss
+     */
+    private PlatformAnnotations lookup( Long id, boolean count ) {
+        synchronized ( platforms ) {
+            PlatformAnnotations pa = platforms.get( id );
+            if ( count ) {
+                if ( pa != null ) {
+                    hits++;
+                } else {
+                    misses++;
+                }
+            }
+            return pa;
+        }
+    }
+
+    /**
+     * Obtain the annotations of several platforms, for instance those used by an experiment.
+     */
+    public List<PlatformAnnotations> get( Collection<ArrayDesign> ads ) {
+        return ads.stream().map( this::get ).collect( Collectors.toList() );
+    }
+
+    /**
+     * @return the number of requests for a platform that was already in memory
+     */
+    public long getHitCount() {
+        synchronized ( platforms ) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return the number of requests for a platform that had to be mapped or generated
+     */
+    public long getMissCount() {
+        synchronized ( platforms ) {
+            return misses;
+        }
+    }
+
+    /**
+     * @return the number of platforms released to stay under the maximum number of probes
+     */
+    public long getEvictionCount() {
+        synchronized ( platforms ) {
+            return evictions;
+        }
+    }
+
+    private PlatformAnnotations load( ArrayDesign ad ) throws IOException {
+        Path file = directory.resolve( ad.getId() + "." + getLastUpdated( ad ) + SUFFIX );
+        if ( Files.exists( file ) ) {
+            try {
+                return PlatformAnnotations.map( file );
+            } catch ( IOException e ) {
+                log.warn( "Could not read " + file + ", the annotations of " + ad + " will be regenerated.", e );
+            }
+        }
+        write( ad, file );
+        return PlatformAnnotations.map( file );
+    }
+
+    /**
+     * Generate the annotation file of a platform and remove any previous version of it.
+     */
+    private void write( ArrayDesign ad, Path file ) throws IOException {
+        log.info( "Generating gene annotations for " + ad );
+        ad = arrayDesignService.thaw( ad );
+        List<CompositeSequence> probes = new ArrayList<>( ad.getCompositeSequences() );
+        probes.sort( Comparator.comparing( CompositeSequence::getId ) );
+        Map<CompositeSequence, Collection<Gene>> genes = compositeSequenceService.getGenes( probes );
+
+        // genes of each probe, without duplicates
+        List<List<Gene>> probeGenes = new ArrayList<>( probes.size() );
+        List<byte[]> symbols = new ArrayList<>( probes.size() );
+        int numGenes = 0;
+        int numSymbolBytes = 0;
+        for ( CompositeSequence cs : probes ) {
+            Collection<Gene> g = genes.get( cs );
+            List<Gene> unique = g != null ? new ArrayList<>( new LinkedHashSet<>( g ) ) : Collections.emptyList();
+            byte[] s = unique.stream().map( Gene::getOfficialSymbol ).collect( Collectors.joining( "|" ) )
+                    .getBytes( StandardCharsets.UTF_8 );
+            probeGenes.add( unique );
+            symbols.add( s );
+            numGenes += unique.size();
+            numSymbolBytes += s.length;
+        }
+
+        Path tmp = Files.createTempFile( directory, ad.getId() + ".", ".tmp" );
+        try {
+            try ( DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream( Files.newOutputStream( tmp ), 1 << 16 ) ) ) {
+                out.writeInt( MAGIC );
+                out.writeInt( VERSION );
+                out.writeLong( ad.getId() );
+                out.writeInt( probes.size() );
+                out.writeInt( numGenes );
+                out.writeInt( numSymbolBytes );
+                for ( CompositeSequence cs : probes ) {
+                    out.writeLong( cs.getId() );
+                }
+                int offset = 0;
+                out.writeInt( offset );
+                for ( List<Gene> g : probeGenes ) {
+                    offset += g.size();
+                    out.writeInt( offset );
+                }
+                for ( List<Gene> g : probeGenes ) {
+                    for ( Gene gene : g ) {
+                        out.writeLong( gene.getId() );
+                    }
+                }
+                for ( List<Gene> g : probeGenes ) {
+                    for ( Gene gene : g ) {
+                        out.writeInt( gene.getNcbiGeneId() != null ? gene.getNcbiGeneId() : -1 );
+                    }
+                }
+                offset = 0;
+                out.writeInt( offset );
+                for ( byte[] s : symbols ) {
+                    offset += s.length;
+                    out.writeInt( offset );
+                }
+                for ( byte[] s : symbols ) {
+                    out.write( s );
+                }
+            }
+            try {
+                Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            } catch ( AtomicMoveNotSupportedException e ) {
+                Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+            }
+        } finally {
+            Files.deleteIfExists( tmp );
+        }
+
+        try ( DirectoryStream<Path> previous = Files.newDirectoryStream( directory, ad.getId() + ".*" + SUFFIX ) ) {
+            for ( Path p : previous ) {
+                if ( !p.equals( file ) ) {
+                    log.info( "Removing outdated annotations " + p );
+                    Files.deleteIfExists( p );
+                }
+            }
+        }
+    }
+
+    private static long getLastUpdated( ArrayDesign ad ) {
+        if ( ad.getCurationDetails() == null || ad.getCurationDetails().getLastUpdated() == null ) {
+            return 0L;
+        }
+        return ad.getCurationDetails().getLastUpdated().getTime();
+    }
+
+    /**
+     * Annotations of the probes of a platform, backed by a memory-mapped file.
+     * <p>
+     * Probes are referred to by their index, which follows the order of their IDs; use {@link #indexOf(long)} to
+     * look up a probe. Gene symbols and IDs are joined with '|', like in the output files of the CLIs.
+     */
+    public static final class PlatformAnnotations {
+
+        private final long arrayDesignId;
+        private final LongBuffer probeIds;
+        private final IntBuffer geneOffsets;
+        private final LongBuffer geneIds;
+        private final IntBuffer ncbiGeneIds;
+        private final IntBuffer symbolOffsets;
+        private final ByteBuffer symbols;
+
+        private static PlatformAnnotations map( Path file ) throws IOException {
+            ByteBuffer buf;
+            try ( FileChannel fc = FileChannel.open( file, StandardOpenOption.READ ) ) {
+                buf = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
+            }
+            return new PlatformAnnotations( buf, file );
+        }
+
+        private PlatformAnnotations( ByteBuffer buf, Path file ) throws IOException {
+            try {
+                if ( buf.getInt() != MAGIC || buf.getInt() != VERSION ) {
+                    throw new IOException( file + " is not an annotation file of the current version." );
+                }
+                this.arrayDesignId = buf.getLong();
+                int numProbes = buf.getInt();
+                int numGenes = buf.getInt();
+                int numSymbolBytes = buf.getInt();
+                this.probeIds = slice( buf, numProbes * Long.BYTES ).asLongBuffer();
+                this.geneOffsets = slice( buf, ( numProbes + 1 ) * Integer.BYTES ).asIntBuffer();
+                this.geneIds = slice( buf, numGenes * Long.BYTES ).asLongBuffer();
+                this.ncbiGeneIds = slice( buf, numGenes * Integer.BYTES ).asIntBuffer();
+                this.symbolOffsets = slice( buf, ( numProbes + 1 ) * Integer.BYTES ).asIntBuffer();
+                this.symbols = slice( buf, numSymbolBytes );
+            } catch ( RuntimeException e ) {
+                // truncated file, the buffer throws BufferUnderflowException or IllegalArgumentException
+                throw new IOException( file + " is corrupted.", e );
+            }
+        }
+
+        /**
+         * Take the next {@code length} bytes of the buffer.
+         */
+        private static ByteBuffer slice( ByteBuffer buf, int length ) {
+            ByteBuffer s = buf.slice();
+            s.limit( length );
+            buf.position( buf.position() + length );
+            return s;
+        }
+
+        public long getArrayDesignId() {
+            return arrayDesignId;
+        }
+
+        /**
+         * @return the number of probes of the platform
+         */
+        public int size() {
+            return probeIds.limit();
+        }
+
+        /**
+         * @return the index of the probe with the given ID, or -1 if it is not on this platform
+         */
+        public int indexOf( long probeId ) {
+            int lo = 0;
+            int hi = probeIds.limit() - 1;
+            while ( lo <= hi ) {
+                int mid = ( lo + hi ) >>> 1;
+                long id = probeIds.get( mid );
+                if ( id < probeId ) {
+                    lo = mid + 1;
+                } else if ( id > probeId ) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        public long getProbeId( int probe ) {
+            return probeIds.get( probe );
+        }
+
+        public int getNumGenes( int probe ) {
+            return geneOffsets.get( probe + 1 ) - geneOffsets.get( probe );
+        }
+
+        /**
+         * @param k index of the gene among those of the probe
+         */
+        public long getGeneId( int probe, int k ) {
+            return geneIds.get( geneOffset( probe, k ) );
+        }
+
+        /**
+         * @param k index of the gene among those of the probe
+         * @return the NCBI ID of the gene, or null if it has none
+         */
+        public Integer getNcbiGeneId( int probe, int k ) {
+            int id = ncbiGeneIds.get( geneOffset( probe, k ) );
+            return id >= 0 ? id : null;
+        }
+
+        /**
+         * @return the official symbols of the genes of the probe joined with '|', or an empty string if it has none
+         */
+        public String getGeneSymbols( int probe ) {
+            int start = symbolOffsets.get( probe );
+            byte[] b = new byte[symbolOffsets.get( probe + 1 ) - start];
+            // the buffer is shared by all the threads, so it cannot be repositioned
+            ByteBuffer s = symbols.duplicate();
+            s.position( start );
+            s.get( b );
+            return new String( b, StandardCharsets.UTF_8 );
+        }
+
+        /**
+         * @return the IDs of the genes of the probe joined with '|', or an empty string if it has none
+         */
+        public String getGeneIds( int probe ) {
+            int start = geneOffsets.get( probe );
+            int end = geneOffsets.get( probe + 1 );
+            StringBuilder buf = new StringBuilder();
+            for ( int i = start; i < end; i++ ) {
+                if ( i > start ) {
+                    buf.append( '|' );
+                }
+                buf.append( geneIds.get( i ) );
+            }
+            return buf.toString();
+        }
+
+        private int geneOffset( int probe, int k ) {
+            if ( k < 0 || k >= getNumGenes( probe ) ) {
+                throw new IndexOutOfBoundsException( "Probe " + getProbeId( probe ) + " has no gene at " + k );
+            }
+            return geneOffsets.get( probe ) + k;
+        }
+    }
+}
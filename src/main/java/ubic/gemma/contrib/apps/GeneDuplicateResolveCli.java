@@ -23,12 +23,13 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import ubic.gemma.cli.util.AbstractCLI;
-import ubic.gemma.core.loader.genome.gene.ncbi.NcbiGeneHistoryParser;
 import ubic.gemma.model.association.BioSequence2GeneProduct;
 import ubic.gemma.model.association.Gene2GOAssociation;
 import ubic.gemma.model.common.description.DatabaseEntry;
@@ -53,12 +54,11 @@ import ubic.gemma.persistence.service.genome.sequenceAnalysis.AnnotationAssociat
 import ubic.gemma.persistence.service.genome.sequenceAnalysis.BlatAssociationService;
 import ubic.gemma.persistence.service.genome.taxon.TaxonService;
 
+import javax.annotation.Nullable;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * Identify, diagnose and optionally fix instances where genes are duplicated (due to changes in NCBI IDs)
@@ -91,8 +91,23 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
 
     private String taxonCommonName = null;
 
+    /**
+     * File where the index of discontinued genes is kept between runs, if any.
+     */
+    private Path historyIndexFile = null;
+
     private boolean doFix = false;
 
+    /**
+     * If true, the planned fixes are only printed.
+     */
+    private boolean dryRun = false;
+
+    /**
+     * Number of duplicates fixed per transaction.
+     */
+    private int batchSize = 100;
+
     @Service
     static class HelperService {
 
@@ -102,6 +117,29 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
         @Autowired
         private AnnotationAssociationDao annotationAssociationDao;
 
+        @Autowired
+        private SessionFactory sessionFactory;
+
+        /**
+         * @param taxon the taxon of the genes, or null for all of them
+         * @return the ID, taxon ID and official symbol of the genes, without loading them
+         */
+        @Transactional(readOnly = true)
+        public List<Object[]> loadGeneSymbols( @Nullable Taxon taxon ) {
+            if ( taxon != null ) {
+                //noinspection unchecked
+                return sessionFactory.getCurrentSession()
+                        .createQuery( "select g.id, g.taxon.id, g.officialSymbol from Gene g where g.taxon = :taxon" )
+                        .setParameter( "taxon", taxon )
+                        .list();
+            } else {
+                //noinspection unchecked
+                return sessionFactory.getCurrentSession()
+                        .createQuery( "select g.id, g.taxon.id, g.officialSymbol from Gene g" )
+                        .list();
+            }
+        }
+
         @Transactional(readOnly = true)
         public GeneSet thaw( GeneSet gs ) {
             gs = geneSetDao.load( gs.getId() );
@@ -115,6 +153,53 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
         public void update( AnnotationAssociation aa ) {
             annotationAssociationDao.update( aa );
         }
+
+        /**
+         * Run some work in a single transaction, which the service calls it makes take part in.
+         */
+        @Transactional
+        public void inTransaction( Runnable work ) {
+            work.run();
+        }
+
+        /**
+         * Write the changes made so far in the current transaction, then evict everything from its session so that it
+         * does not keep growing.
+         */
+        @Transactional
+        public void flushAndClear() {
+            Session session = sessionFactory.getCurrentSession();
+            session.flush();
+            session.clear();
+        }
+    }
+
+    /**
+     * Duplicates of a symbol that can be resolved by keeping one gene and removing the discontinued ones.
+     */
+    private static class PlannedFix {
+        private final String symbol;
+        private final Gene useThisOne;
+        private final Collection<Gene> discontinued;
+
+        private PlannedFix( String symbol, Gene useThisOne, Collection<Gene> discontinued ) {
+            this.symbol = symbol;
+            this.useThisOne = useThisOne;
+            this.discontinued = discontinued;
+        }
+    }
+
+    /**
+     * What the fixes of a transaction did, only reported once it commits.
+     */
+    private static class FixOutcome {
+        private final Collection<String> genesWithRemovedProbeAssociations = new HashSet<>();
+        private final Collection<Gene> genesWithNoProducts = new HashSet<>();
+        private final List<String> messages = new ArrayList<>();
+
+        private void report( String message ) {
+            messages.add( message );
+        }
     }
 
     @Autowired
@@ -133,6 +218,13 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
         options.addOption( pathOption );
         options.addOption( "t", "taxon", true, "Specific taxon for which to update genes" );
         options.addOption( "fix", "Fix problems if possible; otherwise just log them" );
+        options.addOption( "dryRun", "With -fix, print the fixes that would be made without making them" );
+        options.addOption( Option.builder( "batchSize" ).hasArg().argName( "size" )
+                .desc( "With -fix, number of duplicates fixed in each transaction (default 100); if a batch fails, "
+                        + "its duplicates are fixed one at a time" ).build() );
+        options.addOption( Option.builder( "historyIndex" ).hasArg().argName( "file" )
+                .desc( "File where the discontinued genes from gene_history.gz are indexed; it is reused by later runs "
+                        + "as long as gene_history.gz and the taxon are unchanged" ).build() );
     }
 
     @Override
@@ -146,6 +238,16 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
         if ( c.hasOption( "fix" ) ) {
             this.doFix = true;
         }
+        this.dryRun = c.hasOption( "dryRun" );
+        if ( c.hasOption( "batchSize" ) ) {
+            this.batchSize = Integer.parseInt( c.getOptionValue( "batchSize" ) );
+            if ( this.batchSize < 1 ) {
+                throw new IllegalArgumentException( "Batch size must be at least 1" );
+            }
+        }
+        if ( c.hasOption( "historyIndex" ) ) {
+            this.historyIndexFile = Paths.get( c.getOptionValue( "historyIndex" ) );
+        }
     }
     
     @Override
@@ -153,40 +255,23 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
         try {
             Path geneHistoryFile = filePath.resolve( "gene_history.gz" );
 
-            NcbiGeneHistoryParser history = new NcbiGeneHistoryParser();
-            history.parse( geneHistoryFile.toFile() );
-
-            Collection<Gene> genes;
-
-            if ( this.taxonCommonName != null )
-                genes = gs.loadAll( ts.findByCommonName( taxonCommonName ) );
-            else
-                genes = gs.loadAll();
-
-            Map<Taxon, Map<String, Collection<Gene>>> perTaxonDuplicates = new HashMap<>();
-
-            for ( Gene g : genes ) {
-
-                Taxon tax = g.getTaxon();
-
-                if ( !perTaxonDuplicates.containsKey( tax ) ) {
-                    perTaxonDuplicates.put( tax, new HashMap<String, Collection<Gene>>() );
-                }
-
-                String sym = g.getOfficialSymbol();
-
-                Map<String, Collection<Gene>> c1 = perTaxonDuplicates.get( tax );
-
-                if ( !c1.containsKey( sym ) ) {
-                    c1.put( sym, new HashSet<Gene>() );
-                }
-                c1.get( sym ).add( g );
+            Taxon taxon = this.taxonCommonName != null ? ts.findByCommonName( taxonCommonName ) : null;
 
+            // only the discontinued genes of the selected taxon are kept
+            Integer taxonNcbiId = taxon != null ? taxon.getNcbiId() : null;
+            GeneHistoryIndex history;
+            if ( historyIndexFile != null ) {
+                history = GeneHistoryIndex.open( geneHistoryFile, taxonNcbiId, historyIndexFile );
+            } else {
+                history = GeneHistoryIndex.parse( geneHistoryFile, taxonNcbiId );
             }
 
+            Map<Taxon, Map<String, Collection<Gene>>> perTaxonDuplicates = findDuplicates( taxon );
+
             Collection<String> couldNotFix = new HashSet<>();
             Collection<String> genesWithRemovedProbeAssociations = new HashSet<>();
             Collection<Gene> genesWithNoProducts = new HashSet<>();
+            List<PlannedFix> fixes = new ArrayList<>();
             for ( Taxon t : perTaxonDuplicates.keySet() ) {
 
                 for ( String sym : perTaxonDuplicates.get( t ).keySet() ) {
@@ -194,11 +279,7 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
 
                     if ( duplicates.size() == 1 ) continue;
 
-                    Integer discontinuedId = null;
-                    String discontinuedIdForSymbolString = history.discontinuedIdForSymbol( sym, t.getNcbiId() );
-                    if ( StringUtils.isNotBlank( discontinuedIdForSymbolString ) ) {
-                        discontinuedId = Integer.parseInt( discontinuedIdForSymbolString );
-                    }
+                    Integer discontinuedId = history.discontinuedIdForSymbol( sym, t.getNcbiId() );
 
                     System.err.println( sym + ": " + duplicates.size() + " duplicate symbols for " + t.getCommonName() );
                     Collection<Gene> discontinued = new HashSet<>();
@@ -260,51 +341,7 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
                      *
                      */
                     if ( doFix && canFix && useThisOne != null ) {
-                        // Collection<GeneProduct> products = useThisOne.getProducts();
-
-                        //                        GeneProduct soleProduct = null;
-                        //                        GeneProduct annotationAssociationProduct = null;
-                        //                        if ( products.size() == 1 ) {
-                        //                            soleProduct = products.iterator().next();
-                        //                            annotationAssociationProduct = soleProduct;
-                        //                        } else {
-                        //                            annotationAssociationProduct = products.iterator().next();
-                        //                        }
-
-                        useThisOne = gs.thaw( useThisOne );
-
-                        for ( Gene d : discontinued ) {
-
-                            System.err.println( ">> Updating/removing problems with discontinued gene " + d );
-
-                            d = gs.thaw( d );
-
-                            fixGOAssociations( d );
-
-                            fixGeneSets( discontinued, useThisOne, d );
-
-                            fixPlatformAssociations( genesWithRemovedProbeAssociations, genesWithNoProducts, sym, useThisOne, d );
-
-                            //  gene products can share database entries with biosequences - deleting the database entry in such cases is not ok
-
-                            if ( !d.getProducts().isEmpty() ) {
-                                System.err.println( "Will be deleting " + d.getProducts().size() + " gene products from " + d );
-                            }
-                            for ( GeneProduct gp : d.getProducts() ) {
-                                gp.getAccessions().clear();
-                                gps.update( gp );
-                            }
-
-                            // else no products.
-                            //   gps.remove( d.getProducts() ); // do via cascade.
-
-                            try {
-                                gs.remove( gs.load( d.getId() ) ); // avoid staleness.
-                                System.err.println( "Deleted " + d );
-                            } catch ( Exception e3 ) {
-                                System.err.println( "Error while deleting: " + d + "; " + e3.getMessage() );
-                            }
-                        }
+                        fixes.add( new PlannedFix( sym, useThisOne, discontinued ) );
                     } else {
                         couldNotFix.add( sym );
                         System.err.println( ">>> Could not fix: " + sym );
@@ -313,6 +350,17 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
                 }
                 System.err.println();
             }
+
+            if ( dryRun ) {
+                System.err.println( ">>>Planned fixes (dry run, nothing was changed)" );
+                for ( PlannedFix f : fixes ) {
+                    System.err.println( "Would fix:\t" + f.symbol + "\tretain " + f.useThisOne + "\tremove "
+                            + StringUtils.join( f.discontinued, "," ) );
+                }
+            } else {
+                applyFixes( fixes, couldNotFix, genesWithRemovedProbeAssociations, genesWithNoProducts );
+            }
+
             if ( !couldNotFix.isEmpty() ) {
                 System.err.println( ">>>The following could not be fixed" );
                 for ( String string : couldNotFix ) {
@@ -336,18 +384,153 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
 
     }
 
-    private void fixGOAssociations( Gene d ) {
+    /**
+     * Find the genes that share their official symbol with another gene of the same taxon.
+     * <p>
+     * Only the IDs and symbols of the genes are queried, and they are grouped for each taxon in parallel; only the genes
+     * that turn out to be duplicated are loaded.
+     *
+     * @param taxon the taxon to look at, or null for all of them
+     * @return the duplicated genes, by taxon and symbol
+     */
+    private Map<Taxon, Map<String, Collection<Gene>>> findDuplicates( @Nullable Taxon taxon ) {
+        List<Object[]> rows = helperService.loadGeneSymbols( taxon );
+        log.info( "Looking for duplicated symbols among " + rows.size() + " genes" );
+
+        Map<Long, List<Object[]>> rowsByTaxon = new HashMap<>();
+        for ( Object[] row : rows ) {
+            rowsByTaxon.computeIfAbsent( ( Long ) row[1], k -> new ArrayList<>() ).add( row );
+        }
+
+        // taxon ID -> symbol -> gene IDs, only for symbols with more than one gene
+        Map<Long, Map<String, List<Long>>> duplicateIds = rowsByTaxon.entrySet().parallelStream()
+                .collect( Collectors.toMap( Map.Entry::getKey, e -> {
+                    Map<String, List<Long>> bySymbol = new HashMap<>();
+                    for ( Object[] row : e.getValue() ) {
+                        if ( row[2] == null ) continue;
+                        bySymbol.computeIfAbsent( ( String ) row[2], k -> new ArrayList<>( 2 ) ).add( ( Long ) row[0] );
+                    }
+                    bySymbol.values().removeIf( ids -> ids.size() < 2 );
+                    return bySymbol;
+                } ) );
+
+        Map<Taxon, Map<String, Collection<Gene>>> perTaxonDuplicates = new HashMap<>();
+        for ( Map.Entry<Long, Map<String, List<Long>>> e : duplicateIds.entrySet() ) {
+            if ( e.getValue().isEmpty() ) continue;
+            Taxon t = ts.load( e.getKey() );
+            Collection<Long> ids = new ArrayList<>();
+            for ( List<Long> l : e.getValue().values() ) {
+                ids.addAll( l );
+            }
+            Map<String, Collection<Gene>> bySymbol = new HashMap<>();
+            for ( Gene g : gs.load( ids ) ) {
+                bySymbol.computeIfAbsent( g.getOfficialSymbol(), k -> new HashSet<>() ).add( g );
+            }
+            perTaxonDuplicates.put( t, bySymbol );
+            log.info( e.getValue().size() + " duplicated symbols for " + t.getCommonName() );
+        }
+        return perTaxonDuplicates;
+    }
+
+    /**
+     * Apply the planned fixes, a batch of them per transaction. If a batch fails, it is rolled back and its fixes are
+     * applied again one per transaction, so that a single problematic gene does not hold back the others. What was
+     * done is only printed once the transaction commits.
+     *
+     * @param couldNotFix receives the symbols whose fix failed
+     */
+    private void applyFixes( List<PlannedFix> fixes, Collection<String> couldNotFix,
+            Collection<String> genesWithRemovedProbeAssociations, Collection<Gene> genesWithNoProducts ) {
+        for ( int i = 0; i < fixes.size(); i += batchSize ) {
+            List<PlannedFix> batch = fixes.subList( i, Math.min( i + batchSize, fixes.size() ) );
+            List<FixOutcome> outcomes = new ArrayList<>();
+            try {
+                helperService.inTransaction( () -> {
+                    outcomes.clear();
+                    for ( PlannedFix f : batch ) {
+                        FixOutcome outcome = new FixOutcome();
+                        applyFix( f, outcome );
+                        outcomes.add( outcome );
+                        // the session would otherwise keep all the entities of the batch until the commit
+                        helperService.flushAndClear();
+                    }
+                } );
+            } catch ( Exception e ) {
+                log.warn( "Failed to fix a batch of " + batch.size() + " duplicates, fixing them one at a time: "
+                        + e.getMessage() );
+                outcomes.clear();
+                for ( PlannedFix f : batch ) {
+                    FixOutcome outcome = new FixOutcome();
+                    try {
+                        helperService.inTransaction( () -> applyFix( f, outcome ) );
+                        outcomes.add( outcome );
+                    } catch ( Exception e2 ) {
+                        System.err.println( "Error while fixing " + f.symbol + ": " + e2.getMessage() );
+                        couldNotFix.add( f.symbol );
+                    }
+                }
+            }
+            for ( FixOutcome outcome : outcomes ) {
+                for ( String message : outcome.messages ) {
+                    System.err.println( message );
+                }
+                genesWithRemovedProbeAssociations.addAll( outcome.genesWithRemovedProbeAssociations );
+                genesWithNoProducts.addAll( outcome.genesWithNoProducts );
+            }
+            log.info( "Fixed " + Math.min( i + batchSize, fixes.size() ) + "/" + fixes.size() + " duplicates" );
+        }
+    }
+
+    /**
+     * Switch what can be switched from the discontinued genes to the one to retain, then remove the discontinued
+     * genes.
+     */
+    private void applyFix( PlannedFix f, FixOutcome outcome ) {
+        Gene useThisOne = gs.thaw( f.useThisOne );
+
+        for ( Gene d : f.discontinued ) {
+
+            outcome.report( ">> Updating/removing problems with discontinued gene " + d );
+
+            d = gs.thaw( d );
+
+            fixGOAssociations( d, outcome );
+
+            fixGeneSets( f.discontinued, useThisOne, d, outcome );
+
+            fixPlatformAssociations( outcome, f.symbol, useThisOne, d );
+
+            //  gene products can share database entries with biosequences - deleting the database entry in such cases is not ok
+
+            if ( !d.getProducts().isEmpty() ) {
+                outcome.report( "Will be deleting " + d.getProducts().size() + " gene products from " + d );
+            }
+            for ( GeneProduct gp : d.getProducts() ) {
+                gp.getAccessions().clear();
+                gps.update( gp );
+            }
+
+            // else no products.
+            //   gps.remove( d.getProducts() ); // do via cascade.
+
+            // a failure rolls back the whole transaction, so it is left to the caller
+            gs.remove( gs.load( d.getId() ) ); // avoid staleness.
+            outcome.report( "Deleted " + d );
+        }
+    }
+
+    private void fixGOAssociations( Gene d, FixOutcome outcome ) {
         // go associations: just delete them
         Collection<Gene2GOAssociation> goassocs = g2goService.findAssociationByGene( d );
         if ( !goassocs.isEmpty() )
-            System.err.println( "Removing " + goassocs.size() + " GO associations for discontinued gene " + d );
+            outcome.report( "Removing " + goassocs.size() + " GO associations for discontinued gene " + d );
         g2goService.remove( goassocs );
     }
 
-    private void fixGeneSets( Collection<Gene> discontinued, Gene useThisOne, Gene d ) {
+    private void fixGeneSets( Collection<Gene> discontinued, Gene useThisOne, Gene d, FixOutcome outcome ) {
         // gene set: replace
         Collection<GeneSet> geneSets = gsService.findByGene( d );
-        if ( !geneSets.isEmpty() ) System.err.println(
+        if ( !geneSets.isEmpty() ) outcome.report(
                 "Updating " + geneSets.size() + " gene set associations for " + discontinued + " ---> switch to " + useThisOne );
         for ( GeneSet gset : geneSets ) {
             gset = helperService.thaw( gset );
@@ -365,13 +548,12 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
                 gsService.update( gset );
                 assert !gsService.findByGene( d ).contains( gset );
                 assert gsService.findByGene( useThisOne ).contains( gset );
-                System.err.println( "Updated " + gset );
+                outcome.report( "Updated " + gset );
             }
         }
     }
 
-    private void fixPlatformAssociations( Collection<String> genesWithRemovedProbeAssociations, Collection<Gene> genesWithNoProducts, String sym,
-            Gene useThisOne, Gene d ) {
+    private void fixPlatformAssociations( FixOutcome outcome, String sym, Gene useThisOne, Gene d ) {
         /*
          * Platforms - remove the associations. We will eventually regenerate them on the new
          * gene if they are valid. Note that that currently geneDao.remove takes care of these
@@ -379,7 +561,7 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
          */
         Collection<CompositeSequence> cses = csService.findByGene( d );
         if ( !cses.isEmpty() ) {
-            System.err.println( "Removing or updating any associations to " + cses.size() + " platform element for " + d );
+            outcome.report( "Removing or updating any associations to " + cses.size() + " platform element for " + d );
         }
 
         Collection<BlatAssociation> blatAssocRemove = new HashSet<>();
@@ -388,8 +570,8 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
         boolean replacementGeneHasProducts = !useThisOne.getProducts().isEmpty();
         if ( !replacementGeneHasProducts ) {
             // yikes. The gene we're supposed to use has no products. Pseudogenes?
-            System.err.println( "Warning: replacement gene has no products: " + useThisOne );
-            genesWithNoProducts.add( useThisOne );
+            outcome.report( "Warning: replacement gene has no products: " + useThisOne );
+            outcome.genesWithNoProducts.add( useThisOne );
         }
 
         for ( CompositeSequence cs : cses ) {
@@ -422,18 +604,18 @@ public class GeneDuplicateResolveCli extends AbstractCLI {
                         }
                     } else {
                         blatAssocRemove.add( ( BlatAssociation ) b2gp );
-                        genesWithRemovedProbeAssociations.add( sym );
+                        outcome.genesWithRemovedProbeAssociations.add( sym );
                     }
                 }
             }
         }
 
         if ( !blatAssocRemove.isEmpty() ) {
-            System.err.println( "Removing " + blatAssocRemove.size() + " blat associations for " + d );
+            outcome.report( "Removing " + blatAssocRemove.size() + " blat associations for " + d );
             blatService.remove( blatAssocRemove );
         }
         if ( !annotationAssocRemove.isEmpty() ) {
-            System.err.println( "Removing " + annotationAssocRemove.size() + " unneeded annotation associations for " + d );
+            outcome.report( "Removing " + annotationAssocRemove.size() + " unneeded annotation associations for " + d );
             aaService.remove( annotationAssocRemove );
         }
     }
@@ -0,0 +1,256 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Lookup of the NCBI IDs of discontinued genes by taxon and symbol, from NCBI's gene_history file.
+ * <p>
+ * This answers the same question as {@code NcbiGeneHistoryParser.discontinuedIdForSymbol}, but the file is read as a
+ * stream and only the discontinued genes of the selected taxon are kept. The index can be saved to a file that is
+ * memory-mapped by later runs, as long as the history file it was built from has not changed.
+ * <p>
+ * The index file holds, in big-endian order: the magic number {@code GAGH}, a format version, the size and modification
+ * time of the history file, the selected taxon (-1 for all), the number of entries, the entries as (taxon, gene ID,
+ * symbol offset, symbol length) sorted by taxon and UTF-8 symbol, and finally the symbols.
+ */
+class GeneHistoryIndex {
+
+    private static final Log log = LogFactory.getLog( GeneHistoryIndex.class );
+
+    private static final int MAGIC = 0x47414748; // GAGH
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+    private static final int ENTRY_SIZE = 16;
+    private static final int ALL_TAXA = -1;
+
+    /**
+     * Holds the entries then the symbols, as laid out in the index file after its header.
+     */
+    private final ByteBuffer buf;
+    private final int size;
+    private final int symbolsStart;
+
+    private GeneHistoryIndex( ByteBuffer buf, int size ) {
+        this.buf = buf;
+        this.size = size;
+        this.symbolsStart = size * ENTRY_SIZE;
+    }
+
+    /**
+     * Read the discontinued genes from a gene_history file.
+     *
+     * @param taxonNcbiId the taxon to keep, or null for all of them
+     */
+    static GeneHistoryIndex parse( Path geneHistoryFile, Integer taxonNcbiId ) throws IOException {
+        return build( read( geneHistoryFile, taxonNcbiId ) );
+    }
+
+    /**
+     * Obtain the index from a file previously written by this method if it is up-to-date, otherwise parse the history
+     * file and write the index for the next time.
+     *
+     * @param taxonNcbiId the taxon to keep, or null for all of them
+     */
+    static GeneHistoryIndex open( Path geneHistoryFile, Integer taxonNcbiId, Path indexFile ) throws IOException {
+        long sourceSize = Files.size( geneHistoryFile );
+        long sourceLastModified = Files.getLastModifiedTime( geneHistoryFile ).toMillis();
+        int taxon = taxonNcbiId != null ? taxonNcbiId : ALL_TAXA;
+        if ( Files.exists( indexFile ) ) {
+            try ( FileChannel fc = FileChannel.open( indexFile, StandardOpenOption.READ ) ) {
+                ByteBuffer mapped = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
+                if ( mapped.limit() >= HEADER_SIZE && mapped.getInt() == MAGIC && mapped.getInt() == VERSION
+                        && mapped.getLong() == sourceSize && mapped.getLong() == sourceLastModified
+                        && mapped.getInt() == taxon ) {
+                    int size = mapped.getInt();
+                    log.info( "Using " + size + " discontinued genes from " + indexFile );
+                    // the mapping remains valid once the channel is closed
+                    return new GeneHistoryIndex( mapped.slice(), size );
+                }
+            }
+            log.info( indexFile + " is out of date, it will be rebuilt" );
+        }
+
+        GeneHistoryIndex index = parse( geneHistoryFile, taxonNcbiId );
+        Path tmp = Files.createTempFile( indexFile.toAbsolutePath().getParent(), indexFile.getFileName().toString(), ".tmp" );
+        try {
+            try ( FileChannel fc = FileChannel.open( tmp, StandardOpenOption.WRITE ) ) {
+                ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+                header.putInt( MAGIC ).putInt( VERSION ).putLong( sourceSize ).putLong( sourceLastModified )
+                        .putInt( taxon ).putInt( index.size );
+                header.flip();
+                while ( header.hasRemaining() ) {
+                    fc.write( header );
+                }
+                ByteBuffer body = index.buf.duplicate();
+                body.rewind();
+                while ( body.hasRemaining() ) {
+                    fc.write( body );
+                }
+            }
+            Files.move( tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        } finally {
+            Files.deleteIfExists( tmp );
+        }
+        log.info( "Wrote " + index.size + " discontinued genes to " + indexFile );
+        return index;
+    }
+
+    /**
+     * @return the NCBI ID of the discontinued gene with the given symbol, or null if there is none
+     */
+    Integer discontinuedIdForSymbol( String symbol, Integer taxonNcbiId ) {
+        if ( symbol == null || taxonNcbiId == null ) {
+            return null;
+        }
+        byte[] key = symbol.getBytes( StandardCharsets.UTF_8 );
+        int lo = 0, hi = size - 1;
+        while ( lo <= hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            int c = compareEntry( mid, taxonNcbiId, key );
+            if ( c < 0 ) {
+                lo = mid + 1;
+            } else if ( c > 0 ) {
+                hi = mid - 1;
+            } else {
+                return buf.getInt( mid * ENTRY_SIZE + 4 );
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Stream the history file, keeping the genes that were discontinued without replacement. As with
+     * NcbiGeneHistoryParser, a later line for the same taxon and symbol replaces an earlier one.
+     */
+    private static Map<Integer, Map<String, Integer>> read( Path geneHistoryFile, Integer taxonNcbiId ) throws IOException {
+        Map<Integer, Map<String, Integer>> discontinued = new HashMap<>();
+        String taxonPrefix = taxonNcbiId != null ? taxonNcbiId + "\t" : null;
+        long lines = 0;
+        try ( BufferedReader br = new BufferedReader( new InputStreamReader(
+                new GZIPInputStream( Files.newInputStream( geneHistoryFile ), 1 << 16 ), StandardCharsets.UTF_8 ), 1 << 16 ) ) {
+            String line;
+            while ( ( line = br.readLine() ) != null ) {
+                lines++;
+                if ( line.startsWith( "#" ) || ( taxonPrefix != null && !line.startsWith( taxonPrefix ) ) ) {
+                    continue;
+                }
+                // tax_id, GeneID, Discontinued_GeneID, Discontinued_Symbol, Discontinue_Date
+                int t1 = line.indexOf( '\t' );
+                int t2 = line.indexOf( '\t', t1 + 1 );
+                int t3 = line.indexOf( '\t', t2 + 1 );
+                int t4 = line.indexOf( '\t', t3 + 1 );
+                if ( t1 < 0 || t2 < 0 || t3 < 0 || t4 < 0 ) {
+                    throw new IOException( "Invalid line in " + geneHistoryFile + ": " + line );
+                }
+                // a gene that was replaced by another has the ID of the replacement; only "-" means discontinued
+                if ( t2 - t1 != 2 || line.charAt( t1 + 1 ) != '-' ) {
+                    continue;
+                }
+                int taxon = Integer.parseInt( line.substring( 0, t1 ) );
+                int id = Integer.parseInt( line.substring( t2 + 1, t3 ) );
+                String symbol = line.substring( t3 + 1, t4 );
+                discontinued.computeIfAbsent( taxon, k -> new HashMap<>() ).put( symbol, id );
+            }
+        }
+        log.info( "Read " + lines + " lines from " + geneHistoryFile );
+        return discontinued;
+    }
+
+    private static GeneHistoryIndex build( Map<Integer, Map<String, Integer>> discontinued ) {
+        List<Object[]> entries = new ArrayList<>();
+        int symbolBytes = 0;
+        for ( Map.Entry<Integer, Map<String, Integer>> t : discontinued.entrySet() ) {
+            for ( Map.Entry<String, Integer> e : t.getValue().entrySet() ) {
+                byte[] symbol = e.getKey().getBytes( StandardCharsets.UTF_8 );
+                entries.add( new Object[] { t.getKey(), e.getValue(), symbol } );
+                symbolBytes += symbol.length;
+            }
+        }
+        entries.sort( ( a, b ) -> {
+            int c = Integer.compare( ( Integer ) a[0], ( Integer ) b[0] );
+            return c != 0 ? c : compare( ( byte[] ) a[2], ( byte[] ) b[2] );
+        } );
+
+        ByteBuffer buf = ByteBuffer.allocate( entries.size() * ENTRY_SIZE + symbolBytes );
+        int offset = 0;
+        for ( Object[] e : entries ) {
+            byte[] symbol = ( byte[] ) e[2];
+            buf.putInt( ( Integer ) e[0] ).putInt( ( Integer ) e[1] ).putInt( offset ).putInt( symbol.length );
+            offset += symbol.length;
+        }
+        for ( Object[] e : entries ) {
+            buf.put( ( byte[] ) e[2] );
+        }
+        buf.rewind();
+        return new GeneHistoryIndex( buf, entries.size() );
+    }
+
+    private int compareEntry( int entry, int taxon, byte[] symbol ) {
+        int p = entry * ENTRY_SIZE;
+        int c = Integer.compare( buf.getInt( p ), taxon );
+        if ( c != 0 ) {
+            return c;
+        }
+        int offset = symbolsStart + buf.getInt( p + 8 );
+        int length = buf.getInt( p + 12 );
+        int n = Math.min( length, symbol.length );
+        for ( int i = 0; i < n; i++ ) {
+            c = Integer.compare( buf.get( offset + i ) & 0xff, symbol[i] & 0xff );
+            if ( c != 0 ) {
+                return c;
+            }
+        }
+        return Integer.compare( length, symbol.length );
+    }
+
+    /**
+     * Unsigned lexicographic order of UTF-8 bytes, consistent with {@link #compareEntry}.
+     */
+    private static int compare( byte[] a, byte[] b ) {
+        int n = Math.min( a.length, b.length );
+        for ( int i = 0; i < n; i++ ) {
+            int c = Integer.compare( a[i] & 0xff, b[i] & 0xff );
+            if ( c != 0 ) {
+                return c;
+            }
+        }
+        return Integer.compare( a.length, b.length );
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The sets of genes assayed by a collection of experiments.
+ * <p>
+ * Gene IDs are mapped to dense indices, in increasing order of ID, and the set of each experiment is a bitmap over these
+ * indices. Occurrence statistics are computed from the transposed bitmaps, i.e. one bitmap per gene over the
+ * experiments, so that the number of experiments shared by two genes is the population count of their intersection.
+ * <p>
+ * The sets can be saved to a file so that statistics can be computed again without the database. The file holds, in
+ * gzipped big-endian binary, the magic number {@code GAGS}, a format version, the taxon ID, the gene IDs, the
+ * experiment IDs and the words of the bitmap of each experiment.
+ */
+class GeneSets {
+
+    private static final int MAGIC = 0x47414753; // GAGS
+    private static final int VERSION = 1;
+
+    private final long[] geneIds;
+    private final long[] experimentIds;
+    private final BitSet[] sets;
+
+    /**
+     * @param geneSets the IDs of the genes of each experiment, keyed by experiment ID
+     */
+    static GeneSets of( Map<Long, long[]> geneSets ) {
+        long[] experimentIds = new long[geneSets.size()];
+        int e = 0;
+        for ( Long id : geneSets.keySet() ) {
+            experimentIds[e++] = id;
+        }
+        Arrays.sort( experimentIds );
+
+        long[] geneIds = geneSets.values().stream().flatMapToLong( Arrays::stream ).sorted().distinct().toArray();
+
+        BitSet[] sets = new BitSet[experimentIds.length];
+        for ( e = 0; e < experimentIds.length; e++ ) {
+            BitSet set = new BitSet( geneIds.length );
+            for ( long geneId : geneSets.get( experimentIds[e] ) ) {
+                set.set( Arrays.binarySearch( geneIds, geneId ) );
+            }
+            sets[e] = set;
+        }
+        return new GeneSets( geneIds, experimentIds, sets );
+    }
+
+    private GeneSets( long[] geneIds, long[] experimentIds, BitSet[] sets ) {
+        this.geneIds = geneIds;
+        this.experimentIds = experimentIds;
+        this.sets = sets;
+    }
+
+    /**
+     * Read gene sets saved by {@link #write(Path, long)}.
+     *
+     * @param taxonId the taxon the sets are expected to be for
+     */
+    static GeneSets read( Path file, long taxonId ) throws IOException {
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream(
+                new GZIPInputStream( Files.newInputStream( file ) ) ) ) ) {
+            if ( in.readInt() != MAGIC ) {
+                throw new IOException( file + " is not a gene sets file." );
+            }
+            int version = in.readInt();
+            if ( version != VERSION ) {
+                throw new IOException( "Unsupported gene sets file version: " + version + "." );
+            }
+            long fileTaxonId = in.readLong();
+            if ( fileTaxonId != taxonId ) {
+                throw new IOException( file + " is for taxon " + fileTaxonId + ", not " + taxonId + "." );
+            }
+            long[] geneIds = readLongs( in );
+            long[] experimentIds = readLongs( in );
+            BitSet[] sets = new BitSet[experimentIds.length];
+            for ( int e = 0; e < sets.length; e++ ) {
+                sets[e] = BitSet.valueOf( readLongs( in ) );
+            }
+            return new GeneSets( geneIds, experimentIds, sets );
+        }
+    }
+
+    /**
+     * Save the gene sets to a file, replacing it if it exists.
+     *
+     * @param taxonId the taxon the sets are for, checked when they are read back
+     */
+    void write( Path file, long taxonId ) throws IOException {
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                new GZIPOutputStream( Files.newOutputStream( file ) ) ) ) ) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeLong( taxonId );
+            writeLongs( geneIds, out );
+            writeLongs( experimentIds, out );
+            for ( BitSet set : sets ) {
+                writeLongs( set.toLongArray(), out );
+            }
+        }
+    }
+
+    int getNumGenes() {
+        return geneIds.length;
+    }
+
+    int getNumExperiments() {
+        return experimentIds.length;
+    }
+
+    long getGeneId( int gene ) {
+        return geneIds[gene];
+    }
+
+    /**
+     * @return the number of experiments each gene occurs in, indexed like {@link #getGeneId(int)}
+     */
+    int[] occurrenceCounts() {
+        int words = ( experimentIds.length + 63 ) >>> 6;
+        long[] byGene = transpose( words );
+        int[] counts = new int[geneIds.length];
+        for ( int g = 0; g < counts.length; g++ ) {
+            int c = 0;
+            for ( int w = g * words; w < ( g + 1 ) * words; w++ ) {
+                c += Long.bitCount( byGene[w] );
+            }
+            counts[g] = c;
+        }
+        return counts;
+    }
+
+    /**
+     * For each number of experiments, count the pairs of distinct genes that occur together in exactly that many
+     * experiments.
+     *
+     * @param numThreads number of threads sharing the pairs, by first gene
+     * @return counts indexed by number of experiments, from zero to the number of experiments
+     */
+    long[] pairOccurrenceHistogram( int numThreads ) throws InterruptedException {
+        int words = ( experimentIds.length + 63 ) >>> 6;
+        long[] byGene = transpose( words );
+        int numGenes = geneIds.length;
+        int numBins = experimentIds.length + 1;
+        ForkJoinPool pool = new ForkJoinPool( numThreads );
+        try {
+            // rows get shorter as the first gene increases, which parallel streams balance by splitting
+            return pool.submit( () -> IntStream.range( 0, numGenes ).parallel().collect( () -> new long[numBins],
+                    ( histogram, g ) -> {
+                        int a = g * words;
+                        for ( int h = g + 1; h < numGenes; h++ ) {
+                            int b = h * words;
+                            int c = 0;
+                            for ( int w = 0; w < words; w++ ) {
+                                c += Long.bitCount( byGene[a + w] & byGene[b + w] );
+                            }
+                            histogram[c]++;
+                        }
+                    }, ( h1, h2 ) -> {
+                        for ( int i = 0; i < numBins; i++ ) {
+                            h1[i] += h2[i];
+                        }
+                    } ) ).get();
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @param words number of words per gene
+     * @return the bitmap over experiments of each gene, concatenated
+     */
+    private long[] transpose( int words ) {
+        long[] byGene = new long[geneIds.length * words];
+        for ( int e = 0; e < sets.length; e++ ) {
+            int word = e >>> 6;
+            long bit = 1L << e;
+            BitSet set = sets[e];
+            for ( int g = set.nextSetBit( 0 ); g >= 0; g = set.nextSetBit( g + 1 ) ) {
+                byGene[g * words + word] |= bit;
+            }
+        }
+        return byGene;
+    }
+
+    private static long[] readLongs( DataInputStream in ) throws IOException {
+        long[] values = new long[in.readInt()];
+        for ( int i = 0; i < values.length; i++ ) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    private static void writeLongs( long[] values, DataOutputStream out ) throws IOException {
+        out.writeInt( values.length );
+        for ( long v : values ) {
+            out.writeLong( v );
+        }
+    }
+}
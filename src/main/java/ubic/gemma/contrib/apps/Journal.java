@@ -0,0 +1,186 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only record of the experiments completed by a CLI, so that an interrupted run can be resumed.
+ * <p>
+ * Each line holds the ID of a completed experiment followed by the output files written for it, separated by tabs.
+ * An experiment must only be recorded once all its output has been written; if the run is interrupted in between, the
+ * experiment is simply processed again.
+ * <p>
+ * This is thread-safe.
+ */
+class Journal implements Closeable {
+
+    private static final Log log = LogFactory.getLog( Journal.class );
+
+    private final Path file;
+    private final Set<Long> completed = ConcurrentHashMap.newKeySet();
+    private List<String> lastOutputFiles = Collections.emptyList();
+    private final Writer writer;
+
+    /**
+     * @param resume if true, the experiments already recorded in the file are considered completed and new ones are
+     *               appended; otherwise the file is started over
+     */
+    Journal( Path file, boolean resume ) throws IOException {
+        this.file = file;
+        if ( resume && Files.exists( file ) ) {
+            read();
+            terminateLastLine();
+            this.writer = Files.newBufferedWriter( file, StandardCharsets.UTF_8, StandardOpenOption.APPEND );
+            log.info( "Resuming from " + file + ": " + completed.size() + " experiments already completed" );
+        } else {
+            this.writer = Files.newBufferedWriter( file, StandardCharsets.UTF_8 );
+            log.info( "Recording completed experiments in " + file );
+        }
+    }
+
+    /**
+     * @return true if the experiment was recorded as completed, in this run or a previous one
+     */
+    boolean isCompleted( Long eeId ) {
+        return completed.contains( eeId );
+    }
+
+    /**
+     * @return the number of completed experiments, including those of previous runs
+     */
+    int getNumCompleted() {
+        return completed.size();
+    }
+
+    /**
+     * @return the output files of the most recently recorded experiment, or an empty list if there is none
+     */
+    synchronized List<String> getLastOutputFiles() {
+        return lastOutputFiles;
+    }
+
+    /**
+     * Record an experiment as completed; the entry is flushed immediately.
+     *
+     * @param outputFiles the files written for the experiment
+     */
+    synchronized void record( Long eeId, String... outputFiles ) throws IOException {
+        writer.write( eeId.toString() );
+        for ( String f : outputFiles ) {
+            writer.write( '\t' );
+            writer.write( f );
+        }
+        writer.write( '\n' );
+        writer.flush();
+        lastOutputFiles = Collections.unmodifiableList( Arrays.asList( outputFiles ) );
+        completed.add( eeId );
+    }
+
+    /**
+     * Drop the lines of a tab-delimited output file that refer to experiments not recorded as completed. An interrupted
+     * run may have written them without recording the experiment, which would then be written again when it is
+     * processed anew. The first line is a header and is kept, as are lines without a valid experiment ID.
+     *
+     * @param column index of the column holding the experiment ID
+     * @return the number of lines dropped
+     */
+    int dropIncomplete( Path outputFile, int column ) throws IOException {
+        List<String> lines = Files.readAllLines( outputFile, StandardCharsets.UTF_8 );
+        StringBuilder kept = new StringBuilder();
+        int dropped = 0;
+        for ( int i = 0; i < lines.size(); i++ ) {
+            String line = lines.get( i );
+            if ( i > 0 ) {
+                String[] fields = line.split( "\t", column + 2 );
+                try {
+                    if ( fields.length > column && !isCompleted( Long.parseLong( fields[column] ) ) ) {
+                        dropped++;
+                        continue;
+                    }
+                } catch ( NumberFormatException e ) {
+                    // not about an experiment
+                }
+            }
+            kept.append( line ).append( '\n' );
+        }
+        if ( dropped > 0 ) {
+            Files.write( outputFile, kept.toString().getBytes( StandardCharsets.UTF_8 ) );
+        }
+        return dropped;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    private void read() throws IOException {
+        String content = new String( Files.readAllBytes( file ), StandardCharsets.UTF_8 );
+        String[] lines = content.split( "\n", -1 );
+        // the last element is either empty or an entry that was cut short, which must not be trusted
+        for ( int i = 0; i < lines.length - 1; i++ ) {
+            if ( lines[i].isEmpty() ) {
+                continue;
+            }
+            String[] fields = lines[i].split( "\t" );
+            try {
+                List<String> outputFiles = Collections.unmodifiableList(
+                        Arrays.asList( Arrays.copyOfRange( fields, 1, fields.length ) ) );
+                completed.add( Long.parseLong( fields[0] ) );
+                lastOutputFiles = outputFiles;
+            } catch ( NumberFormatException e ) {
+                log.warn( "Ignoring malformed line in " + file + ": " + lines[i] );
+            }
+        }
+        if ( !lines[lines.length - 1].isEmpty() ) {
+            log.warn( "Ignoring incomplete last entry in " + file + ": " + lines[lines.length - 1] );
+        }
+    }
+
+    /**
+     * If the last entry was cut short, terminate it so that new entries start on their own line.
+     */
+    private void terminateLastLine() throws IOException {
+        try ( FileChannel fc = FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+            if ( fc.size() == 0 ) {
+                return;
+            }
+            ByteBuffer last = ByteBuffer.allocate( 1 );
+            fc.read( last, fc.size() - 1 );
+            if ( last.get( 0 ) != '\n' ) {
+                fc.write( ByteBuffer.wrap( new byte[] { '\n' } ), fc.size() );
+            }
+        }
+    }
+}
@@ -19,11 +19,12 @@
 
 package ubic.gemma.contrib.apps;
 
-import cern.colt.list.DoubleArrayList;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import ubic.basecode.math.Distance;
 import ubic.gemma.apps.DifferentialExpressionAnalysisCli;
 import ubic.gemma.core.analysis.expression.diff.DiffExAnalyzer;
 import ubic.gemma.core.analysis.expression.diff.DifferentialExpressionAnalysisConfig;
@@ -32,26 +33,26 @@ import ubic.gemma.model.analysis.expression.diff.ContrastResult;
 import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
 import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysisResult;
 import ubic.gemma.model.analysis.expression.diff.ExpressionAnalysisResultSet;
-import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
 import ubic.gemma.model.expression.bioAssayData.ProcessedExpressionDataVector;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
 import ubic.gemma.model.expression.experiment.ExperimentalDesignUtils;
 import ubic.gemma.model.expression.experiment.ExperimentalFactor;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
 import ubic.gemma.model.expression.experiment.FactorValue;
-import ubic.gemma.model.genome.Gene;
 import ubic.gemma.persistence.service.expression.arrayDesign.ArrayDesignService;
 import ubic.gemma.persistence.service.expression.bioAssayData.ProcessedExpressionDataVectorService;
 import ubic.gemma.persistence.service.expression.designElement.CompositeSequenceService;
-import ubic.gemma.persistence.util.IdentifiableUtils;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
 
 /**
  * Performs differential expression analyses with and without ebayes. Based on BachDiffExCli
@@ -59,13 +60,27 @@ import java.util.stream.Collectors;
  * @author paul
  */
 public class LimmaDiffExCli extends DifferentialExpressionAnalysisCli {
-    private static final int LOGGING_FREQ = 20000;
+    /*
+     * Analyses whose results are kept in the detail table.
+     */
+    private static final int NOBAYES = 0;
+    private static final int EBAYES = 1;
 
     /**
      * This only affects the summaries that are output.
      */
     private static final double summaryQvalThreshold = 0.01;
 
+    /**
+     * Number of probes on which a shared fit is checked against the analyzer.
+     */
+    private static final int SHARED_FIT_CHECK_SIZE = 1000;
+
+    /**
+     * Ranking buffers of the threads computing correlations.
+     */
+    private static final ThreadLocal<RankCorrelation> rankCorrelations = ThreadLocal.withInitial( RankCorrelation::new );
+
     @Autowired
     private DiffExAnalyzer lma;
 
@@ -81,12 +96,41 @@ public class LimmaDiffExCli extends DifferentialExpressionAnalysisCli {
     @Value("${gemma.download.path}")
     private Path downloadPath;
 
-    private final Collection<ArrayDesign> seenArrays = new HashSet<>();
+    @Value("${gemma.appdata.home}")
+    private Path appDataHome;
 
-    private final Map<CompositeSequence, Collection<Gene>> genes = new HashMap<>();
+    /**
+     * Directory of the gene annotation cache, defaults to annotationCache under the application data directory.
+     */
+    private Path annotationCacheDir;
+    private GeneAnnotationCache annotationCache;
 
     private Writer summaryFile;
 
+    /**
+     * If true, experiments recorded in the journal of a previous run are skipped and the summary is appended to.
+     */
+    private boolean resume = false;
+    private Journal journal;
+
+    /**
+     * File where the time spent in each stage is written, if any.
+     */
+    private Path metricsFile;
+    private StageMetrics metrics;
+
+    /**
+     * If true, the model of an experiment is fitted once and the statistics with and without eBayes are both derived
+     * from that fit, instead of running the analysis twice.
+     */
+    private boolean sharedFit = false;
+
+    /**
+     * Number of threads computing the correlations of an experiment; if 1, they are computed in the calling thread.
+     */
+    private int compareThreads = 1;
+    private ForkJoinPool comparePool;
+
     @Override
     public String getCommandName() {
         return "limmacompare";
@@ -97,24 +141,96 @@ public class LimmaDiffExCli extends DifferentialExpressionAnalysisCli {
         return "Performs multiple differential expression analyses with and without ebayes, generate comparison stats";
     }
 
+    @Override
+    protected void buildExperimentOptions( Options options ) {
+        super.buildExperimentOptions( options );
+        options.addOption( Option.builder( "annotationCache" ).hasArg().argName( "dir" )
+                .desc( "Directory where probe to gene annotations are cached between runs "
+                        + "(default: annotationCache under the application data directory)" ).build() );
+        options.addOption( Option.builder( "resume" ).longOpt( "resume" )
+                .desc( "Skip the experiments completed by a previous run, as recorded in limma.proc.journal.txt, "
+                        + "and append to its summary file" ).build() );
+        options.addOption( Option.builder( "metrics" ).hasArg().argName( "file" )
+                .desc( "Write the wall time, CPU time and allocated bytes of each stage of each experiment to a file "
+                        + "as JSON lines; a summary is logged at the end of the run regardless" ).build() );
+        options.addOption( Option.builder( "sharedFit" )
+                .desc( "Fit the model of each experiment once and moderate that same fit with eBayes, instead of "
+                        + "running the analysis twice; the data are neither filtered nor transformed, and the fit is checked "
+                        + "against the analyzer on " + SHARED_FIT_CHECK_SIZE + " probes. Experiments the fit cannot be "
+                        + "used for, or where it disagrees with the analyzer, are still analyzed twice" ).build() );
+        options.addOption( Option.builder( "compareThreads" ).hasArg().argName( "numThreads" )
+                .desc( "Number of threads computing the correlations between the analyses of an experiment "
+                        + "(default: 1, in the thread processing the experiment)" ).build() );
+    }
+
+    @Override
+    protected void processExperimentOptions( CommandLine commandLine ) {
+        super.processExperimentOptions( commandLine );
+        if ( commandLine.hasOption( "annotationCache" ) ) {
+            this.annotationCacheDir = Paths.get( commandLine.getOptionValue( "annotationCache" ) );
+        }
+        this.resume = commandLine.hasOption( "resume" );
+        if ( commandLine.hasOption( "metrics" ) ) {
+            this.metricsFile = Paths.get( commandLine.getOptionValue( "metrics" ) );
+        }
+        this.sharedFit = commandLine.hasOption( "sharedFit" );
+        if ( commandLine.hasOption( "compareThreads" ) ) {
+            this.compareThreads = Integer.parseInt( commandLine.getOptionValue( "compareThreads" ) );
+            if ( this.compareThreads < 1 ) {
+                throw new IllegalArgumentException( "Number of threads must be at least 1" );
+            }
+        }
+    }
+
     @Override
     protected void doAuthenticatedWork() throws Exception {
-        try ( Writer summaryFile = initOutputFile( "limma.proc.summary.txt" ) ) {
-            summaryFile.write( "State\tEEID\tEENAME\tEFID\tEFNAME\tNUM\tNUMDIFF\n" );
+        annotationCache = new GeneAnnotationCache(
+                annotationCacheDir != null ? annotationCacheDir : appDataHome.resolve( "annotationCache" ),
+                arrayDesignService, compositeSequenceService );
+        try ( Journal journal = new Journal( downloadPath.resolve( "limma.proc.journal.txt" ), resume );
+                StageMetrics metrics = new StageMetrics( metricsFile );
+                Writer summaryFile = initSummaryFile( journal, "limma.proc.summary.txt",
+                        "State\tEEID\tEENAME\tEFID\tEFNAME\tNUM\tNUMDIFF\n" ) ) {
+            this.journal = journal;
+            this.metrics = metrics;
             this.summaryFile = summaryFile;
-            super.doAuthenticatedWork();
+            if ( compareThreads > 1 ) {
+                comparePool = new ForkJoinPool( compareThreads );
+            }
+            try {
+                super.doAuthenticatedWork();
+            } finally {
+                if ( comparePool != null ) {
+                    comparePool.shutdownNow();
+                    comparePool = null;
+                }
+                log.info( "Time spent per stage of the completed experiments:\n" + metrics.summarize() );
+            }
         } finally {
             this.summaryFile = null;
+            this.journal = null;
+            this.metrics = null;
         }
     }
 
     @Override
     protected void processExpressionExperiment( ExpressionExperiment ee ) {
+        if ( journal.isCompleted( ee.getId() ) ) {
+            log.info( "Skipping " + ee + ", it was completed by a previous run" );
+            addSuccessObject( ee, "Completed by a previous run" );
+            return;
+        }
+
         String fileprefix = ee.getId() + "." + ee.getShortName().replaceAll( "[\\W\\s]+", "_" );
+        String detailFileName = "ebayes.proc.detail." + fileprefix + ".txt";
+        // only recorded if the experiment is completed
+        StageMetrics.Timer total = metrics.time( ee, "total" );
 
-        try ( Writer detailFile = initOutputFile( "ebayes.proc.detail." + fileprefix + ".txt" ) ) {
+        try ( TsvWriter detailFile = new TsvWriter( newOutputFile( detailFileName ) ) ) {
 
-            ee = eeService.thawLite( ee );
+            try ( StageMetrics.Timer t = metrics.time( ee, "thaw" ) ) {
+                ee = eeService.thawLite( ee );
+            }
 
 
             Collection<ExperimentalFactor> experimentalFactors = ee.getExperimentalDesign().getExperimentalFactors();
@@ -133,10 +249,13 @@ public class LimmaDiffExCli extends DifferentialExpressionAnalysisCli {
             /*
              * Extract data FIXME make this ONE STEP to getting the data matrix.
              */
-            Collection<ProcessedExpressionDataVector> vectos = processedExpressionDataVectorService
-                    .getProcessedDataVectors( ee );
-            processedExpressionDataVectorService.thaw( vectos );
-            ExpressionDataDoubleMatrix mat = new ExpressionDataDoubleMatrix( vectos );
+            ExpressionDataDoubleMatrix mat;
+            try ( StageMetrics.Timer t = metrics.time( ee, "loadVectors" ) ) {
+                Collection<ProcessedExpressionDataVector> vectos = processedExpressionDataVectorService
+                        .getProcessedDataVectors( ee );
+                processedExpressionDataVectorService.thaw( vectos );
+                mat = new ExpressionDataDoubleMatrix( vectos );
+            }
 
             StringBuilder summaryBuf = new StringBuilder();
 
@@ -149,71 +268,67 @@ public class LimmaDiffExCli extends DifferentialExpressionAnalysisCli {
                 if ( ExperimentalDesignUtils.isBatchFactor( ef ) ) continue;
                 factorsToAnalyze.add( ef );
             }
-            int j = 0;
-            DifferentialExpressionAnalysisConfig config1 = new DifferentialExpressionAnalysisConfig();
-            config1.addFactorsToInclude( factorsToAnalyze );
-            config1.setMakeArchiveFile( false );
-            config1.setModerateStatistics( false ); // <----
-            log.info( "=== Nobayes === " );
-            Collection<DifferentialExpressionAnalysis> deas = lma.run( ee, mat, config1 );
-            if ( deas.isEmpty() ) {
-                log.error( "No differential expression results obtained, moving on" );
-                addErrorObject( ee, "No differential expression results obtained" );
-                return;
-            }
-            DifferentialExpressionAnalysis beforeResults = deas.iterator().next();
-            Map<CompositeSequence, Map<ExperimentalFactor, Double>> beforeResultDetails = new HashMap<>();
-            for ( ExpressionAnalysisResultSet brs : beforeResults.getResultSets() ) {
-                ExperimentalFactor ef = brs.getExperimentalFactors().iterator().next();
-                Collection<DifferentialExpressionAnalysisResult> results = brs.getResults();
-                int c = 0;
-                for ( DifferentialExpressionAnalysisResult r : results ) {
-                    c = tally( beforeResultDetails, ef, r, c );
-                    if ( ++j % LOGGING_FREQ == 0 ) {
-                        log.info( j + " processed" );
+
+            DifferentialExpressionAnalysis beforeResults = null;
+            DifferentialExpressionAnalysis eBayesResults = null;
+            if ( sharedFit ) {
+                String problem = SharedFit.checkApplicable( mat, factorsToAnalyze );
+                if ( problem == null ) {
+                    /*
+                     * The eBayes fit only differs from the plain one by the moderation of the variances, so both are
+                     * derived from the same fit.
+                     */
+                    log.info( "=== Shared fit ===" );
+                    try ( StageMetrics.Timer t = metrics.time( ee, "fit.shared" ) ) {
+                        SharedFit fit = new SharedFit( mat, factorsToAnalyze );
+                        beforeResults = fit.summarize();
+                        fit.moderate();
+                        eBayesResults = fit.summarize();
+                    }
+                    problem = checkSharedFit( ee, mat, factorsToAnalyze, beforeResults );
+                    if ( problem != null ) {
+                        beforeResults = null;
+                        eBayesResults = null;
                     }
                 }
-                summaryBuf.append( "Nobayes\t" + ee.getId() + "\t" + ee.getShortName() + "\t" + ef.getId() + "\t"
-                        + ef.getName() + "\t" + results.size() + "\t" + c + "\n" );
-            }
-
-            /*
-             * Then do it with ebayes.
-             */
-            DifferentialExpressionAnalysisConfig config2 = new DifferentialExpressionAnalysisConfig();
-            config2.setModerateStatistics( true ); // <----
-            config2.addFactorsToInclude( factorsToAnalyze );
-            config2.setMakeArchiveFile( false );
-            log.info( "=== With ebayes ===" );
-            Collection<DifferentialExpressionAnalysis> deas2 = lma.run( ee, mat, config2 );
-            if ( deas2.isEmpty() ) {
-                log.error( "No differential expression results obtained with eBayes, moving on" );
-                addErrorObject( ee, "No differential expression results obtained with eBayes" );
-                return;
+                if ( problem != null ) {
+                    log.warn( "Not using a shared fit for " + ee + " since " + problem
+                            + "; the analysis is run twice" );
+                }
             }
-            DifferentialExpressionAnalysis eBayesResults = deas2.iterator()
-                    .next();
-
-            Map<CompositeSequence, Map<ExperimentalFactor, Double>> afterDetails = new HashMap<>();
-
-            for ( ExpressionAnalysisResultSet brs : eBayesResults.getResultSets() ) {
-                ExperimentalFactor ef = brs.getExperimentalFactors().iterator().next();
-                Collection<DifferentialExpressionAnalysisResult> results = brs.getResults();
-                int c = 0;
-                for ( DifferentialExpressionAnalysisResult r : results ) {
-                    c = tally( afterDetails, ef, r, c );
-                    if ( ++j % LOGGING_FREQ == 0 ) {
-                        log.info( j + " processed" );
-                    }
+            if ( beforeResults == null ) {
+                log.info( "=== Nobayes === " );
+                Collection<DifferentialExpressionAnalysis> deas = fit( ee, mat, factorsToAnalyze, false,
+                        "fit.nobayes" );
+                if ( deas.isEmpty() ) {
+                    log.error( "No differential expression results obtained, moving on" );
+                    addErrorObject( ee, "No differential expression results obtained" );
+                    return;
+                }
+                beforeResults = deas.iterator().next();
 
+                /*
+                 * Then do it with ebayes.
+                 */
+                log.info( "=== With ebayes ===" );
+                Collection<DifferentialExpressionAnalysis> deas2 = fit( ee, mat, factorsToAnalyze, true, "fit.ebayes" );
+                if ( deas2.isEmpty() ) {
+                    log.error( "No differential expression results obtained with eBayes, moving on" );
+                    addErrorObject( ee, "No differential expression results obtained with eBayes" );
+                    return;
                 }
-                summaryBuf.append( "Ebayes\t" ).append( ee.getId() ).append( "\t" )
-                        .append( ee.getShortName() ).append( "\t" )
-                        .append( ef.getId() ).append( "\t" ).append( ef.getName() ).append( "\t" )
-                        .append( results.size() ).append( "\t" ).append( c ).append( "\n" );
+                eBayesResults = deas2.iterator()
+                        .next();
             }
 
-            List<String> correlations = compare( beforeResults, eBayesResults );
+            DiffExResultTable details = new DiffExResultTable( factorsToAnalyze, 2, mat.rows() );
+            tally( details, NOBAYES, "Nobayes", ee, beforeResults, summaryBuf );
+            tally( details, EBAYES, "Ebayes", ee, eBayesResults, summaryBuf );
+
+            List<String> correlations;
+            try ( StageMetrics.Timer t = metrics.time( ee, "compare" ) ) {
+                correlations = compare( beforeResults, eBayesResults, t );
+            }
             summaryBuf.append( "Correlations\t" ).append( ee.getId() ).append( "\t" )
                     .append( ee.getShortName() ).append( "\t" )
                     .append( StringUtils.join( correlations, " " ) ).append( "\n" );
@@ -223,38 +338,56 @@ public class LimmaDiffExCli extends DifferentialExpressionAnalysisCli {
              */
 
             detailFile
-                    .write( "EEID\tEENAME\tEFID\tEFNAME\tPROBEID\tPROBENAME\tGENESYMBS\tGENEIDS\tNOBAYESQVAL\tEBAYESQVAL\n" );
+                    .writeLine( "EEID\tEENAME\tEFID\tEFNAME\tPROBEID\tPROBENAME\tGENESYMBS\tGENEIDS\tNOBAYESQVAL\tEBAYESQVAL" );
+
+            List<GeneAnnotationCache.PlatformAnnotations> annotations;
+            try ( StageMetrics.Timer t = metrics.time( ee, "annotations" ) ) {
+                annotations = annotationCache.get( eeService.getArrayDesignsUsed( ee ) );
+            }
 
-            getGeneAnnotations( ee );
+            StageMetrics.Timer writeDetails = metrics.time( ee, "writeDetails" );
 
-            for ( CompositeSequence c : beforeResultDetails.keySet() ) {
+            List<ExperimentalFactor> tableFactors = details.getFactors();
+            for ( int i = 0; i < details.getNumProbes(); i++ ) {
+                if ( !details.hasResult( i, NOBAYES ) ) continue;
+                CompositeSequence c = details.getProbe( i );
 
                 // Get the gene information
                 String geneSymbs = "";
                 String geneIds = "";
-                if ( genes.containsKey( c ) ) {
-                    LinkedHashSet<Gene> g = new LinkedHashSet<>( genes.get( c ) );
-                    geneSymbs = g.stream().map( Gene::getOfficialSymbol ).collect( Collectors.joining( "|" ) );
-                    geneIds = StringUtils.join( IdentifiableUtils.getIds( g ), "|" );
+                for ( GeneAnnotationCache.PlatformAnnotations pa : annotations ) {
+                    int k = pa.indexOf( c.getId() );
+                    if ( k >= 0 ) {
+                        geneSymbs = pa.getGeneSymbols( k );
+                        geneIds = pa.getGeneIds( k );
+                        break;
+                    }
                 }
 
-                for ( ExperimentalFactor ef : factorsToAnalyze ) {
+                for ( int f = 0; f < tableFactors.size(); f++ ) {
+                    ExperimentalFactor ef = tableFactors.get( f );
 
-                    detailFile.write( ee.getId() + "\t" + ee.getShortName() + "\t" + ef.getId() + "\t" + ef.getName()
-                            + "\t" + c.getId() + "\t" + c.getName() + "\t" + geneSymbs + "\t" + geneIds + "\t" );
+                    detailFile.field( ee.getId() ).field( ee.getShortName() ).field( ef.getId() ).field( ef.getName() )
+                            .field( c.getId() ).field( c.getName() ).field( geneSymbs ).field( geneIds );
 
-                    Double bpval = beforeResultDetails.get( c ).get( ef ); // will be null for 'batch'
+                    double bpval = details.get( i, f, NOBAYES );
 
-                    Double batpval = afterDetails.get( c ).get( ef ); // when batch was included.
+                    double batpval = details.get( i, f, EBAYES );
 
-                    detailFile.write( String.format( "%.4g\t%.4g\n", bpval, batpval ) );
+                    detailFile.field( bpval ).field( batpval ).endRow();
 
                 }
             }
             detailFile.close();
+            writeDetails.close();
+
+            total.close();
 
+            // last, so that the summary only has lines for the experiments recorded in the journal
             summaryFile.write( summaryBuf.toString() );
             summaryFile.flush();
+            journal.record( ee.getId(), detailFileName );
+
             addSuccessObject( ee, "" );
         } catch ( Exception e ) {
             log.error( e, e );
@@ -264,9 +397,109 @@ public class LimmaDiffExCli extends DifferentialExpressionAnalysisCli {
     }
 
     /**
+     * Fit a model including the given factors, ignoring interactions.
+     *
+     * @param moderate use eBayes to moderate the statistics
+     * @param stage    name under which the time spent is recorded
+     */
+    private Collection<DifferentialExpressionAnalysis> fit( ExpressionExperiment ee, ExpressionDataDoubleMatrix mat,
+            Collection<ExperimentalFactor> factors, boolean moderate, String stage ) {
+        try ( StageMetrics.Timer t = metrics.time( ee, stage ) ) {
+            DifferentialExpressionAnalysisConfig config = new DifferentialExpressionAnalysisConfig();
+            config.addFactorsToInclude( factors );
+            config.setMakeArchiveFile( false );
+            config.setModerateStatistics( moderate );
+            return lma.run( ee, mat, config );
+        }
+    }
+
+    /**
+     * Check the p-values of a shared fit without moderation against those of the analyzer, on a sample of the probes.
+     * Unlike the corrected p-values, they only depend on the probe itself, so the analyzer is run on a subset of the
+     * matrix. Probes filtered out by the analyzer are not checked.
+     *
+     * @return the first disagreement, or null if there is none
+     */
+    private String checkSharedFit( ExpressionExperiment ee, ExpressionDataDoubleMatrix mat,
+            Collection<ExperimentalFactor> factors, DifferentialExpressionAnalysis shared ) {
+        int step = Math.max( 1, mat.rows() / SHARED_FIT_CHECK_SIZE );
+        List<CompositeSequence> rows = new ArrayList<>();
+        for ( int i = 0; i < mat.rows(); i += step ) {
+            rows.add( mat.getDesignElementForRow( i ) );
+        }
+        Collection<DifferentialExpressionAnalysis> deas;
+        try {
+            deas = fit( ee, new ExpressionDataDoubleMatrix( mat, rows ), factors, false, "fit.check" );
+        } catch ( Exception e ) {
+            log.debug( e, e );
+            return "the analyzer failed on a sample of the probes: " + e.getMessage();
+        }
+        if ( deas.isEmpty() ) {
+            return "the analyzer gave no results on a sample of the probes";
+        }
+
+        // p-values of the shared fit, by factor or contrast, then probe
+        Map<String, Double> pvalues = new HashMap<>();
+        for ( ExpressionAnalysisResultSet rs : shared.getResultSets() ) {
+            ExperimentalFactor ef = rs.getExperimentalFactors().iterator().next();
+            for ( DifferentialExpressionAnalysisResult r : rs.getResults() ) {
+                pvalues.put( ef.getId() + "/" + r.getProbe().getId(), r.getPvalue() );
+                for ( ContrastResult cr : r.getContrasts() ) {
+                    pvalues.put( "fv" + cr.getFactorValue().getId() + "/" + r.getProbe().getId(), cr.getPvalue() );
+                }
+            }
+        }
+
+        int checked = 0;
+        for ( ExpressionAnalysisResultSet rs : deas.iterator().next().getResultSets() ) {
+            if ( rs.getExperimentalFactors().size() > 1 ) {
+                continue;
+            }
+            ExperimentalFactor ef = rs.getExperimentalFactors().iterator().next();
+            for ( DifferentialExpressionAnalysisResult r : rs.getResults() ) {
+                CompositeSequence probe = r.getProbe();
+                if ( r.getPvalue() != null ) {
+                    Double p = pvalues.get( ef.getId() + "/" + probe.getId() );
+                    if ( p == null || !agrees( p, r.getPvalue() ) ) {
+                        return "the p-value of " + probe.getName() + " for " + ef.getName() + " is " + p
+                                + " instead of " + r.getPvalue();
+                    }
+                    checked++;
+                }
+                for ( ContrastResult cr : r.getContrasts() ) {
+                    if ( cr.getFactorValue() == null || cr.getPvalue() == null ) {
+                        continue;
+                    }
+                    Double p = pvalues.get( "fv" + cr.getFactorValue().getId() + "/" + probe.getId() );
+                    if ( p == null || !agrees( p, cr.getPvalue() ) ) {
+                        return "the p-value of " + probe.getName() + " for " + cr.getFactorValue() + " is " + p
+                                + " instead of " + cr.getPvalue();
+                    }
+                }
+            }
+        }
+        if ( checked == 0 ) {
+            return "the analyzer gave no p-values on a sample of the probes";
+        }
+        return null;
+    }
+
+    private static boolean agrees( double a, double b ) {
+        return Math.abs( a - b ) <= 1e-8 + 1e-4 * Math.max( Math.abs( a ), Math.abs( b ) );
+    }
+
+    /**
+     * Correlate the p-values of the two analyses, for the ANOVA effect of each factor and for each contrast. Probes
+     * missing from either analysis, or without a p-value, are left out of the correlation.
+     * <p>
+     * The correlations are independent of each other and are computed concurrently if there is a pool for them. They
+     * are reported for the factors then the contrasts, each in order of ID.
+     *
+     * @param timer if not null, the CPU time and allocations of the correlations computed in the pool are added to it
      * @return vector of rank correlations.
      */
-    private List<String> compare( DifferentialExpressionAnalysis beforeResults, DifferentialExpressionAnalysis eBayesResults ) {
+    List<String> compare( DifferentialExpressionAnalysis beforeResults, DifferentialExpressionAnalysis eBayesResults,
+            StageMetrics.Timer timer ) {
 
         Collection<ExpressionAnalysisResultSet> beforeResultSets = beforeResults.getResultSets();
         Collection<ExpressionAnalysisResultSet> eBayesResultSets = eBayesResults.getResultSets();
@@ -275,8 +508,11 @@ public class LimmaDiffExCli extends DifferentialExpressionAnalysisCli {
          * Collect vectors of values and compute rank correlations. Other comparisions can be done as well...
          */
 
-        Map<ExperimentalFactor, Map<CompositeSequence, Double[]>> apv = new HashMap<>(); // ANOVA effects
-        Map<FactorValue, Map<CompositeSequence, Double[]>> cpv = new HashMap<>(); // contrasts
+        Map<ExperimentalFactor, PairedValues> apv = new TreeMap<>(
+                Comparator.nullsFirst( Comparator.comparing( ExperimentalFactor::getId ) ) ); // ANOVA effects
+        // the contrasts of continuous factors have no factor value
+        Map<FactorValue, PairedValues> cpv = new TreeMap<>(
+                Comparator.nullsFirst( Comparator.comparing( FactorValue::getId ) ) ); // contrasts
 
         for ( ExpressionAnalysisResultSet brs : beforeResultSets ) {
             // Note: ignoring interactions.
@@ -284,26 +520,15 @@ public class LimmaDiffExCli extends DifferentialExpressionAnalysisCli {
                 continue;
             }
             ExperimentalFactor ef = brs.getExperimentalFactors().iterator().next();
-            if ( !apv.containsKey( ef ) ) apv.put( ef, new HashMap<CompositeSequence, Double[]>() );
+            int numResults = brs.getResults().size();
+            PairedValues efValues = apv.computeIfAbsent( ef, k -> new PairedValues( numResults ) );
 
             for ( DifferentialExpressionAnalysisResult r : brs.getResults() ) {
-
-                Double pvalue2 = r.getPvalue();
-                CompositeSequence probe = r.getProbe();
-                if ( !apv.get( ef ).containsKey( probe ) ) apv.get( ef ).put( probe, new Double[2] );
-                apv.get( ef ).get( probe )[0] = pvalue2;
-
+                long probeId = r.getProbe().getId();
+                efValues.setFirst( probeId, r.getPvalue() );
                 for ( ContrastResult cr : r.getContrasts() ) {
-                    FactorValue factorValue = cr.getFactorValue();
-                    Double pvalue = cr.getPvalue();
-
-                    if ( !cpv.containsKey( factorValue ) )
-                        cpv.put( factorValue, new HashMap<CompositeSequence, Double[]>() );
-                    if ( !cpv.get( factorValue ).containsKey( probe ) )
-                        cpv.get( factorValue ).put( probe, new Double[2] );
-
-                    cpv.get( factorValue ).get( probe )[0] = pvalue;
-
+                    cpv.computeIfAbsent( cr.getFactorValue(), k -> new PairedValues( numResults ) )
+                            .setFirst( probeId, cr.getPvalue() );
                 }
             }
         }
@@ -314,111 +539,98 @@ public class LimmaDiffExCli extends DifferentialExpressionAnalysisCli {
                 continue;
             }
             ExperimentalFactor ef = brs.getExperimentalFactors().iterator().next();
+            int numResults = brs.getResults().size();
+            PairedValues efValues = apv.computeIfAbsent( ef, k -> new PairedValues( numResults ) );
 
             for ( DifferentialExpressionAnalysisResult r : brs.getResults() ) {
-
-                Double pvalue2 = r.getPvalue();
-                CompositeSequence probe = r.getProbe();
-                assert apv.get( ef ) != null;
-                if ( apv.get( ef ).get( probe ) == null ) {
-                    // If it's missing from the nobayes analysis we put in NaN. Not sure why that happens.
-                    if ( !warned ) {
-                        log.warn( "No nobayes result for " + probe + ", further warnings suppressed" );
-                        warned = true;
-                    }
-                    apv.get( ef ).put( probe, new Double[2] );
-                    apv.get( ef ).get( probe )[0] = Double.NaN;
+                long probeId = r.getProbe().getId();
+                if ( !warned && !efValues.contains( probeId ) ) {
+                    // Not sure why that happens.
+                    log.warn( "No nobayes result for " + r.getProbe() + ", further warnings suppressed" );
+                    warned = true;
                 }
-
-                apv.get( ef ).get( probe )[1] = pvalue2;
-
+                efValues.setSecond( probeId, r.getPvalue() );
                 for ( ContrastResult cr : r.getContrasts() ) {
-                    FactorValue factorValue = cr.getFactorValue();
-                    Double pvalue = cr.getPvalue();
-                    if ( cpv.get( factorValue ).get( probe ) == null ) {
-                        cpv.get( factorValue ).put( probe, new Double[2] );
-                        cpv.get( factorValue ).get( probe )[0] = Double.NaN;
-                    }
-                    cpv.get( factorValue ).get( probe )[1] = pvalue;
-
+                    cpv.computeIfAbsent( cr.getFactorValue(), k -> new PairedValues( numResults ) )
+                            .setSecond( probeId, cr.getPvalue() );
                 }
             }
         }
 
-        List<String> r = new ArrayList<>();
-
-        // unroll
-        // ANOVA effects
-        for ( ExperimentalFactor ef : apv.keySet() ) {
-            int n = apv.get( ef ).size();
-            DoubleArrayList a = new DoubleArrayList( n );
-            DoubleArrayList b = new DoubleArrayList( n );
-
-            for ( CompositeSequence cs : apv.get( ef ).keySet() ) {
-                Double[] pvs = apv.get( ef ).get( cs );
-                a.add( pvs[0] );
-                b.add( pvs[1] );
+        // ANOVA effects, then contrasts
+        List<PairedValues> vectors = new ArrayList<>( apv.size() + cpv.size() );
+        vectors.addAll( apv.values() );
+        vectors.addAll( cpv.values() );
+
+        List<String> r = new ArrayList<>( vectors.size() );
+        if ( comparePool != null && vectors.size() > 1 ) {
+            List<ForkJoinTask<Double>> tasks = new ArrayList<>( vectors.size() );
+            for ( PairedValues values : vectors ) {
+                Supplier<Double> task = () -> values.spearman( rankCorrelations.get() );
+                if ( timer != null ) {
+                    task = timer.including( task );
+                }
+                tasks.add( comparePool.submit( task::get ) );
             }
-
-            String corr = String.format( "%.5f", Distance.spearmanRankCorrelation( a, b ) );
-            r.add( corr );
-        }
-
-        // Contrasts
-        for ( FactorValue fv : cpv.keySet() ) {
-            int n = cpv.get( fv ).size();
-            DoubleArrayList a = new DoubleArrayList( n );
-            DoubleArrayList b = new DoubleArrayList( n );
-            for ( CompositeSequence cs : cpv.get( fv ).keySet() ) {
-                Double[] pvs = cpv.get( fv ).get( cs );
-                a.add( pvs[0] == null ? Double.NaN : pvs[0] );
-                b.add( pvs[1] == null ? Double.NaN : pvs[1] );
+            for ( ForkJoinTask<Double> task : tasks ) {
+                r.add( String.format( "%.5f", task.join() ) );
+            }
+        } else {
+            RankCorrelation scratch = rankCorrelations.get();
+            for ( PairedValues values : vectors ) {
+                r.add( String.format( "%.5f", values.spearman( scratch ) ) );
             }
-
-            String corr = String.format( "%.5f", Distance.spearmanRankCorrelation( a, b ) );
-            r.add( corr );
         }
         return r;
     }
 
     /**
-     * Gets annotations for this experiment, if the array designs have not already been seen in this run.
+     * Open the summary file; when resuming, an existing summary is appended to instead of being replaced, once the
+     * lines of the experiments the previous run did not complete are dropped.
      */
-    private void getGeneAnnotations( ExpressionExperiment ee ) {
-        Collection<ArrayDesign> arrayDesigns = eeService.getArrayDesignsUsed( ee );
-        for ( ArrayDesign ad : arrayDesigns ) {
-            if ( seenArrays.contains( ad ) ) continue;
-            ad = this.arrayDesignService.thaw( ad );
-            genes.putAll( compositeSequenceService.getGenes( ad.getCompositeSequences() ) );
-            seenArrays.add( ad );
+    private Writer initSummaryFile( Journal journal, String fileName, String header ) throws IOException {
+        File f = downloadPath.resolve( fileName ).toFile();
+        if ( resume && f.length() > 0 ) {
+            int dropped = journal.dropIncomplete( f.toPath(), 1 );
+            if ( dropped > 0 ) {
+                log.warn( "Dropped " + dropped + " summary lines of experiments that were not completed from " + f );
+            }
+            log.info( "Appending to " + f.getAbsolutePath() );
+            return new FileWriter( f, true );
         }
+        Writer w = new FileWriter( newOutputFile( fileName ) );
+        w.write( header );
+        return w;
     }
 
-    private Writer initOutputFile( String fileName ) throws IOException {
+    /**
+     * Create an empty output file, replacing any previous one.
+     */
+    private File newOutputFile( String fileName ) throws IOException {
         File f = downloadPath.resolve( fileName ).toFile();
         if ( f.exists() ) {
             f.delete();
         }
         f.createNewFile();
         log.info( "New file: " + f.getAbsolutePath() );
-        return new FileWriter( f );
+        return f;
     }
 
-    private int tally( Map<CompositeSequence, Map<ExperimentalFactor, Double>> revisedResultDetails,
-            ExperimentalFactor ef, DifferentialExpressionAnalysisResult r, int c ) {
-        Double pval = r.getCorrectedPvalue();
-
-        if ( pval != null && pval < summaryQvalThreshold ) {
-            c++;
-        }
-        /*
-         * Map of probe -> factor -> pval
-         */
-        CompositeSequence probe = r.getProbe();
-        if ( !revisedResultDetails.containsKey( probe ) ) {
-            revisedResultDetails.put( probe, new HashMap<ExperimentalFactor, Double>() );
+    /**
+     * Store the results of an analysis in the table and append the per-factor summary lines.
+     *
+     * @param condition the analysis the results are from
+     * @param state     label of the analysis in the summary
+     */
+    private void tally( DiffExResultTable details, int condition, String state, ExpressionExperiment ee,
+            DifferentialExpressionAnalysis analysis, StringBuilder summaryBuf ) {
+        for ( ExpressionAnalysisResultSet brs : analysis.getResultSets() ) {
+            ExperimentalFactor ef = brs.getExperimentalFactors().iterator().next();
+            int c = details.add( condition, brs, summaryQvalThreshold );
+            summaryBuf.append( state ).append( "\t" ).append( ee.getId() ).append( "\t" )
+                    .append( ee.getShortName() ).append( "\t" )
+                    .append( ef.getId() ).append( "\t" ).append( ef.getName() ).append( "\t" )
+                    .append( brs.getResults().size() ).append( "\t" ).append( c ).append( "\n" );
         }
-        revisedResultDetails.get( probe ).put( ef, pval );
-        return c;
     }
 }
@@ -0,0 +1,100 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import cern.colt.map.OpenLongIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Pairs of values indexed by probe ID, e.g. the p-values of the same test in two analyses.
+ * <p>
+ * Values are kept in two primitive arrays; a pair whose first or second value was never set holds NaN in its place.
+ */
+class PairedValues {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Maps probe IDs to their slot, plus one so that absent probes map to zero.
+     */
+    private final OpenLongIntHashMap index;
+    private double[] first;
+    private double[] second;
+    private int size = 0;
+
+    /**
+     * @param expectedSize an estimate of the number of pairs, zero if unknown
+     */
+    PairedValues( int expectedSize ) {
+        int capacity = expectedSize > 0 ? expectedSize : DEFAULT_CAPACITY;
+        this.index = new OpenLongIntHashMap( capacity );
+        this.first = new double[capacity];
+        this.second = new double[capacity];
+    }
+
+    /**
+     * @param value the value, null is stored as NaN
+     */
+    void setFirst( long probeId, Double value ) {
+        first[slot( probeId )] = value != null ? value : Double.NaN;
+    }
+
+    /**
+     * @param value the value, null is stored as NaN
+     */
+    void setSecond( long probeId, Double value ) {
+        second[slot( probeId )] = value != null ? value : Double.NaN;
+    }
+
+    boolean contains( long probeId ) {
+        return index.get( probeId ) > 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Spearman rank correlation between the first and second values, ignoring the pairs with a missing value.
+     *
+     * @param scratch buffers for the computation, which can be reused for any number of correlations
+     */
+    double spearman( RankCorrelation scratch ) {
+        return scratch.spearman( first, second, size );
+    }
+
+    private int slot( long probeId ) {
+        int i = index.get( probeId );
+        if ( i > 0 ) {
+            return i - 1;
+        }
+        i = size++;
+        index.put( probeId, i + 1 );
+        if ( i >= first.length ) {
+            int oldLength = first.length;
+            first = Arrays.copyOf( first, 2 * oldLength );
+            second = Arrays.copyOf( second, 2 * oldLength );
+        }
+        first[i] = Double.NaN;
+        second[i] = Double.NaN;
+        return i;
+    }
+}
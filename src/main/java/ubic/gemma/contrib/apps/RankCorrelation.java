@@ -0,0 +1,125 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import cern.colt.GenericSorting;
+
+/**
+ * Spearman rank correlation on primitive arrays.
+ * <p>
+ * The buffers used for ranking grow as needed and are kept between calls, so that computing many correlations does not
+ * allocate once they have reached the size of the largest input. Tied values get the average of their ranks, as in
+ * {@link ubic.basecode.math.Distance#spearmanRankCorrelation}.
+ * <p>
+ * This is not thread-safe; use one instance per thread.
+ */
+class RankCorrelation {
+
+    private double[] x = new double[0];
+    private double[] y = new double[0];
+    private double[] rx = new double[0];
+    private double[] ry = new double[0];
+    private int[] order = new int[0];
+
+    /**
+     * @param a first values; pairs where either value is NaN are ignored
+     * @param b second values
+     * @param n number of pairs, i.e. the number of values used from each array
+     * @return the correlation, or NaN if fewer than two complete pairs remain or either side is constant
+     */
+    double spearman( double[] a, double[] b, int n ) {
+        ensureCapacity( n );
+        int m = 0;
+        for ( int i = 0; i < n; i++ ) {
+            if ( Double.isNaN( a[i] ) || Double.isNaN( b[i] ) ) {
+                continue;
+            }
+            x[m] = a[i];
+            y[m] = b[i];
+            m++;
+        }
+        if ( m < 2 ) {
+            return Double.NaN;
+        }
+        rank( x, rx, m );
+        rank( y, ry, m );
+        return pearson( rx, ry, m );
+    }
+
+    /**
+     * Rank the first n values, averaging the ranks of ties.
+     */
+    private void rank( double[] values, double[] ranks, int n ) {
+        for ( int i = 0; i < n; i++ ) {
+            order[i] = i;
+        }
+        GenericSorting.quickSort( 0, n, ( i, j ) -> Double.compare( values[order[i]], values[order[j]] ), ( i, j ) -> {
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        } );
+        int i = 0;
+        while ( i < n ) {
+            int j = i + 1;
+            while ( j < n && values[order[j]] == values[order[i]] ) {
+                j++;
+            }
+            // ranks are 1-based, the run spans ranks i + 1 to j
+            double r = ( i + 1 + j ) / 2.0;
+            for ( int k = i; k < j; k++ ) {
+                ranks[order[k]] = r;
+            }
+            i = j;
+        }
+    }
+
+    private static double pearson( double[] u, double[] v, int n ) {
+        double mu = 0, mv = 0;
+        for ( int i = 0; i < n; i++ ) {
+            mu += u[i];
+            mv += v[i];
+        }
+        mu /= n;
+        mv /= n;
+        double suv = 0, suu = 0, svv = 0;
+        for ( int i = 0; i < n; i++ ) {
+            double du = u[i] - mu;
+            double dv = v[i] - mv;
+            suv += du * dv;
+            suu += du * du;
+            svv += dv * dv;
+        }
+        if ( suu == 0 || svv == 0 ) {
+            return Double.NaN;
+        }
+        return suv / Math.sqrt( suu * svv );
+    }
+
+    private void ensureCapacity( int n ) {
+        if ( x.length >= n ) {
+            return;
+        }
+        x = new double[n];
+        y = new double[n];
+        rx = new double[n];
+        ry = new double[n];
+        order = new int[n];
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package ubic.gemma.contrib.apps;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.impl.DenseDoubleMatrix1D;
+import ubic.basecode.dataStructure.matrix.ObjectMatrix;
+import ubic.basecode.dataStructure.matrix.ObjectMatrixImpl;
+import ubic.basecode.math.linearmodels.DesignMatrix;
+import ubic.basecode.math.linearmodels.LeastSquaresFit;
+import ubic.basecode.math.linearmodels.LinearModelSummary;
+import ubic.basecode.math.MultipleTestCorrection;
+import ubic.basecode.math.linearmodels.ModeratedTstat;
+import ubic.gemma.core.analysis.expression.diff.BaselineSelection;
+import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
+import ubic.gemma.model.analysis.expression.diff.ContrastResult;
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
+import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysisResult;
+import ubic.gemma.model.analysis.expression.diff.ExpressionAnalysisResultSet;
+import ubic.gemma.model.expression.biomaterial.BioMaterial;
+import ubic.gemma.model.expression.experiment.ExperimentalFactor;
+import ubic.gemma.model.expression.experiment.FactorType;
+import ubic.gemma.model.expression.experiment.FactorValue;
+
+import java.util.*;
+
+/**
+ * Linear model of the main effects of some factors, fitted once, from which the statistics with and without eBayes
+ * moderation are both derived. The moderation only shrinks the residual variances of the fit towards a common prior,
+ * so the design matrix, its decomposition, the coefficients and the residuals are shared.
+ * <p>
+ * Only what is needed to compare the two is derived: the ANOVA p-value of each factor, corrected over the probes by
+ * Benjamini-Hochberg, and the p-value of each contrast. Every sample must have a value for each factor, see
+ * {@link #checkApplicable}.
+ * <p>
+ * The model is fitted outside of {@link ubic.gemma.core.analysis.expression.diff.DiffExAnalyzer}, which does not expose
+ * its fit, so the results differ from those of the analyzer in the following ways:
+ * <ul>
+ * <li>the data are used as they are in the matrix, without the analyzer's log2 transform of data on another scale;</li>
+ * <li>no probe is filtered out, whereas the analyzer drops the probes with too few values or too little variance, so
+ * there are more results and the p-values are corrected over more probes;</li>
+ * <li>the p-values are corrected by baseCode's {@link MultipleTestCorrection#benjaminiHochberg}, over the probes that
+ * have one.</li>
+ * </ul>
+ * The p-values of the probes kept by the analyzer are otherwise the same, which callers should check against the
+ * analyzer on a sample of the probes.
+ */
+class SharedFit {
+
+    private static final String FACTOR_VALUE_PREFIX = "fv_";
+
+    private final ExpressionDataDoubleMatrix mat;
+    private final List<ExperimentalFactor> factors;
+    private final LeastSquaresFit fit;
+
+    /**
+     * @return why the model cannot be fitted, or null if every sample of the matrix has a value for each of the
+     * factors, numeric for the continuous ones, and each categorical factor has at least two levels among the samples
+     */
+    static String checkApplicable( ExpressionDataDoubleMatrix mat, Collection<ExperimentalFactor> factors ) {
+        for ( ExperimentalFactor ef : factors ) {
+            Set<FactorValue> levels = new HashSet<>();
+            for ( int i = 0; i < mat.columns(); i++ ) {
+                BioMaterial bm = mat.getBioMaterialForColumn( i );
+                FactorValue fv = valueOf( bm, ef );
+                if ( fv == null ) {
+                    return bm + " has no value for " + ef;
+                }
+                if ( isContinuous( ef ) && measurementOf( fv ) == null ) {
+                    return bm + " has no numeric measurement for " + ef;
+                }
+                levels.add( fv );
+            }
+            if ( !isContinuous( ef ) && levels.size() < 2 ) {
+                return ef + " has fewer than 2 levels among the samples";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fit the model, ignoring interactions.
+     */
+    SharedFit( ExpressionDataDoubleMatrix mat, Collection<ExperimentalFactor> factors ) {
+        this.mat = mat;
+        this.factors = new ArrayList<>( factors );
+
+        List<BioMaterial> samples = new ArrayList<>( mat.columns() );
+        List<String> sampleNames = new ArrayList<>( mat.columns() );
+        for ( int i = 0; i < mat.columns(); i++ ) {
+            samples.add( mat.getBioMaterialForColumn( i ) );
+            // a sample can appear in more than one column of a multi-platform matrix
+            sampleNames.add( String.valueOf( i ) );
+        }
+        List<String> factorNames = new ArrayList<>( this.factors.size() );
+        for ( ExperimentalFactor ef : this.factors ) {
+            factorNames.add( nameOf( ef ) );
+        }
+
+        ObjectMatrix<String, String, Object> sampleInfo = new ObjectMatrixImpl<>( samples.size(), this.factors.size() );
+        sampleInfo.setRowNames( sampleNames );
+        sampleInfo.setColumnNames( factorNames );
+        for ( int i = 0; i < samples.size(); i++ ) {
+            for ( int j = 0; j < this.factors.size(); j++ ) {
+                ExperimentalFactor ef = this.factors.get( j );
+                FactorValue fv = valueOf( samples.get( i ), ef );
+                if ( fv == null ) {
+                    throw new IllegalArgumentException( samples.get( i ) + " has no value for " + ef );
+                }
+                if ( isContinuous( ef ) ) {
+                    Double value = measurementOf( fv );
+                    if ( value == null ) {
+                        throw new IllegalArgumentException(
+                                samples.get( i ) + " has no numeric measurement for " + ef );
+                    }
+                    sampleInfo.set( i, j, value );
+                } else {
+                    sampleInfo.set( i, j, FACTOR_VALUE_PREFIX + fv.getId() );
+                }
+            }
+        }
+
+        DesignMatrix designMatrix = new DesignMatrix( sampleInfo, true );
+        Map<ExperimentalFactor, FactorValue> baselines = BaselineSelection
+                .getBaselineConditions( samples, this.factors );
+        for ( ExperimentalFactor ef : this.factors ) {
+            FactorValue baseline = baselines.get( ef );
+            if ( !isContinuous( ef ) && baseline != null ) {
+                designMatrix.setBaseline( nameOf( ef ), FACTOR_VALUE_PREFIX + baseline.getId() );
+            }
+        }
+
+        this.fit = new LeastSquaresFit( designMatrix, mat.getMatrix() );
+    }
+
+    /**
+     * Moderate the statistics of the fit with eBayes; the analyses summarized afterwards use the moderated statistics.
+     */
+    void moderate() {
+        ModeratedTstat.ebayes( fit );
+    }
+
+    /**
+     * Summarize the fit as an analysis with one result set per factor.
+     */
+    DifferentialExpressionAnalysis summarize() {
+        List<LinearModelSummary> summaries = fit.summarize( true );
+        DifferentialExpressionAnalysis analysis = DifferentialExpressionAnalysis.Factory.newInstance();
+        Set<ExpressionAnalysisResultSet> resultSets = new HashSet<>();
+        for ( ExperimentalFactor ef : factors ) {
+            resultSets.add( summarize( analysis, ef, summaries ) );
+        }
+        analysis.setResultSets( resultSets );
+        return analysis;
+    }
+
+    private ExpressionAnalysisResultSet summarize( DifferentialExpressionAnalysis analysis, ExperimentalFactor ef,
+            List<LinearModelSummary> summaries ) {
+        String name = nameOf( ef );
+        Map<String, FactorValue> levels = new HashMap<>();
+        for ( FactorValue fv : ef.getFactorValues() ) {
+            levels.put( FACTOR_VALUE_PREFIX + fv.getId(), fv );
+        }
+
+        ExpressionAnalysisResultSet rs = new ExpressionAnalysisResultSet();
+        rs.setAnalysis( analysis );
+        rs.setExperimentalFactors( Collections.singleton( ef ) );
+
+        double[] pvalues = new double[summaries.size()];
+        List<DifferentialExpressionAnalysisResult> results = new ArrayList<>( summaries.size() );
+        for ( int i = 0; i < summaries.size(); i++ ) {
+            LinearModelSummary lms = summaries.get( i );
+            DifferentialExpressionAnalysisResult r = DifferentialExpressionAnalysisResult.Factory.newInstance();
+            r.setProbe( mat.getDesignElementForRow( i ) );
+            r.setResultSet( rs );
+            Double p = lms.getMainEffectPValue( name );
+            pvalues[i] = p != null ? p : Double.NaN;
+            if ( !Double.isNaN( pvalues[i] ) ) {
+                r.setPvalue( p );
+            }
+            Set<ContrastResult> contrasts = new HashSet<>();
+            Map<String, Double> contrastPvalues = lms.getContrastPValues( name );
+            if ( contrastPvalues != null ) {
+                for ( Map.Entry<String, Double> e : contrastPvalues.entrySet() ) {
+                    // terms are named after the factor followed by the level
+                    String level = e.getKey().startsWith( name ) ? e.getKey().substring( name.length() ) : e.getKey();
+                    FactorValue fv = levels.get( level );
+                    if ( fv == null || e.getValue() == null || Double.isNaN( e.getValue() ) ) {
+                        continue;
+                    }
+                    ContrastResult cr = ContrastResult.Factory.newInstance();
+                    cr.setFactorValue( fv );
+                    cr.setPvalue( e.getValue() );
+                    contrasts.add( cr );
+                }
+            }
+            r.setContrasts( contrasts );
+            results.add( r );
+        }
+
+        double[] qvalues = benjaminiHochberg( pvalues );
+        for ( int i = 0; i < results.size(); i++ ) {
+            if ( !Double.isNaN( qvalues[i] ) ) {
+                results.get( i ).setCorrectedPvalue( qvalues[i] );
+            }
+        }
+        rs.setResults( new HashSet<>( results ) );
+        return rs;
+    }
+
+    /**
+     * Benjamini-Hochberg corrected p-values; missing p-values are left out of the correction and stay missing.
+     */
+    private static double[] benjaminiHochberg( double[] pvalues ) {
+        int[] kept = new int[pvalues.length];
+        int m = 0;
+        for ( int i = 0; i < pvalues.length; i++ ) {
+            if ( !Double.isNaN( pvalues[i] ) ) {
+                kept[m++] = i;
+            }
+        }
+        DoubleMatrix1D p = new DenseDoubleMatrix1D( m );
+        for ( int k = 0; k < m; k++ ) {
+            p.set( k, pvalues[kept[k]] );
+        }
+        DoubleMatrix1D q = MultipleTestCorrection.benjaminiHochberg( p );
+        double[] qvalues = new double[pvalues.length];
+        Arrays.fill( qvalues, Double.NaN );
+        for ( int k = 0; k < m; k++ ) {
+            qvalues[kept[k]] = q.get( k );
+        }
+        return qvalues;
+    }
+
+    private static String nameOf( ExperimentalFactor ef ) {
+        return "fact." + ef.getId();
+    }
+
+    private static boolean isContinuous( ExperimentalFactor ef ) {
+        return ef.getType() == FactorType.CONTINUOUS;
+    }
+
+    /**
+     * @return the value of a continuous factor, or null if it is missing or not a number
+     */
+    private static Double measurementOf( FactorValue fv ) {
+        if ( fv.getMeasurement() == null || fv.getMeasurement().getValue() == null ) {
+            return null;
+        }
+        try {
+            return Double.parseDouble( fv.getMeasurement().getValue() );
+        } catch ( NumberFormatException e ) {
+            return null;
+        }
+    }
+
+    private static FactorValue valueOf( BioMaterial bm, ExperimentalFactor ef ) {
+        for ( FactorValue fv : bm.getFactorValues() ) {
+            if ( fv.getExperimentalFactor().equals( ef ) ) {
+                return fv;
+            }
+        }
+        return null;
+    }
+}
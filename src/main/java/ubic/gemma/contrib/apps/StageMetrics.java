@@ -0,0 +1,252 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Records the wall time, CPU time and allocated bytes of the stages of processing each experiment.
+ * <p>
+ * Measurements are taken on the thread that opens the {@link Timer}; work that a stage hands to other threads is
+ * only accounted for if it is wrapped with {@link Timer#including(Supplier)}. Each measurement is optionally written
+ * to a file as a line of JSON, and {@link #summarize()} gives the distribution of wall times per stage.
+ * <p>
+ * This is thread-safe.
+ */
+class StageMetrics implements Closeable {
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final boolean cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported();
+    private final com.sun.management.ThreadMXBean allocationMXBean;
+
+    private final Writer out;
+
+    /**
+     * Measurements per stage, in order of first appearance.
+     */
+    private final Map<String, List<Timer>> stages = new LinkedHashMap<>();
+
+    /**
+     * @param file where to write the measurements as JSON lines, or null to only keep them for the summary
+     */
+    StageMetrics( Path file ) throws IOException {
+        this.out = file != null ? Files.newBufferedWriter( file, StandardCharsets.UTF_8 ) : null;
+        if ( threadMXBean instanceof com.sun.management.ThreadMXBean
+                && ( ( com.sun.management.ThreadMXBean ) threadMXBean ).isThreadAllocatedMemorySupported() ) {
+            allocationMXBean = ( com.sun.management.ThreadMXBean ) threadMXBean;
+        } else {
+            allocationMXBean = null;
+        }
+    }
+
+    /**
+     * Start measuring a stage for an experiment; the measurement is recorded when the timer is closed.
+     */
+    Timer time( ExpressionExperiment ee, String stage ) {
+        return new Timer( ee.getId(), ee.getShortName(), stage );
+    }
+
+    /**
+     * Summarize the measurements of each stage.
+     *
+     * @return one line per stage, with the number of measurements, percentiles of the wall time and the total CPU
+     * time and allocated memory
+     */
+    synchronized String summarize() {
+        StringBuilder buf = new StringBuilder();
+        buf.append( String.format( "%-24s %8s %10s %10s %10s %10s %12s %12s%n", "Stage", "N", "p50 (s)", "p90 (s)",
+                "p99 (s)", "max (s)", "CPU (s)", "Alloc. (MB)" ) );
+        for ( Map.Entry<String, List<Timer>> e : stages.entrySet() ) {
+            List<Timer> timers = e.getValue();
+            long[] wall = new long[timers.size()];
+            long cpu = 0;
+            long allocated = 0;
+            for ( int i = 0; i < wall.length; i++ ) {
+                Timer t = timers.get( i );
+                wall[i] = t.wallNanos;
+                cpu += Math.max( t.cpuNanos, 0 );
+                allocated += Math.max( t.allocatedBytes, 0 );
+            }
+            Arrays.sort( wall );
+            buf.append( String.format( "%-24s %8d %10.2f %10.2f %10.2f %10.2f %12.1f %12.1f%n", e.getKey(), wall.length,
+                    percentile( wall, 0.5 ) / 1e9, percentile( wall, 0.9 ) / 1e9, percentile( wall, 0.99 ) / 1e9,
+                    wall[wall.length - 1] / 1e9, cpu / 1e9, allocated / ( 1024.0 * 1024.0 ) ) );
+        }
+        return buf.toString();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if ( out != null ) {
+            out.close();
+        }
+    }
+
+    /**
+     * Nearest-rank percentile.
+     */
+    private static long percentile( long[] sorted, double p ) {
+        int rank = ( int ) Math.ceil( p * sorted.length );
+        return sorted[Math.max( rank, 1 ) - 1];
+    }
+
+    private synchronized void record( Timer t ) {
+        stages.computeIfAbsent( t.stage, k -> new ArrayList<>() ).add( t );
+        if ( out == null ) {
+            return;
+        }
+        try {
+            out.write( "{\"eeId\":" + t.eeId
+                    + ",\"ee\":\"" + escape( t.eeShortName ) + "\""
+                    + ",\"stage\":\"" + escape( t.stage ) + "\""
+                    + ",\"thread\":\"" + escape( t.thread ) + "\""
+                    + ",\"start\":" + t.startMillis
+                    + ",\"wallNanos\":" + t.wallNanos
+                    + ",\"cpuNanos\":" + t.cpuNanos
+                    + ",\"allocatedBytes\":" + t.allocatedBytes
+                    + "}\n" );
+            out.flush();
+        } catch ( IOException e ) {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    private static String escape( String s ) {
+        if ( s == null ) {
+            return "";
+        }
+        StringBuilder buf = new StringBuilder( s.length() );
+        for ( int i = 0; i < s.length(); i++ ) {
+            char c = s.charAt( i );
+            if ( c == '"' || c == '\\' ) {
+                buf.append( '\\' ).append( c );
+            } else if ( c < 0x20 ) {
+                buf.append( String.format( "\\u%04x", ( int ) c ) );
+            } else {
+                buf.append( c );
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Measurement of a stage, taken between its creation and {@link #close()}. CPU time and allocated bytes are -1 if
+     * the JVM does not support measuring them.
+     */
+    class Timer implements AutoCloseable {
+
+        private final Long eeId;
+        private final String eeShortName;
+        private final String stage;
+        private final String thread;
+        private final long threadId;
+        private final long startMillis;
+        private final long startNanos;
+        private final long startCpuNanos;
+        private final long startAllocatedBytes;
+
+        private long wallNanos;
+        private long cpuNanos = -1;
+        private long allocatedBytes = -1;
+        private boolean closed = false;
+
+        /**
+         * CPU time and bytes allocated by other threads on behalf of the stage.
+         */
+        private final LongAdder otherCpuNanos = new LongAdder();
+        private final LongAdder otherAllocatedBytes = new LongAdder();
+
+        private Timer( Long eeId, String eeShortName, String stage ) {
+            this.eeId = eeId;
+            this.eeShortName = eeShortName;
+            this.stage = stage;
+            this.thread = Thread.currentThread().getName();
+            this.threadId = Thread.currentThread().getId();
+            this.startMillis = System.currentTimeMillis();
+            this.startCpuNanos = cpuTime();
+            this.startAllocatedBytes = allocatedBytes();
+            this.startNanos = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            if ( closed ) {
+                return;
+            }
+            closed = true;
+            wallNanos = System.nanoTime() - startNanos;
+            if ( startCpuNanos >= 0 ) {
+                cpuNanos = cpuTime() - startCpuNanos + otherCpuNanos.sum();
+            }
+            if ( startAllocatedBytes >= 0 ) {
+                allocatedBytes = allocatedBytes() - startAllocatedBytes + otherAllocatedBytes.sum();
+            }
+            record( this );
+        }
+
+        /**
+         * Wrap a task of this stage so that, when it runs on another thread, its CPU time and allocated bytes are
+         * added to the stage. The task must complete before the timer is closed. A task that ends up running on the
+         * thread that opened the timer is already accounted for and is left alone.
+         */
+        <T> Supplier<T> including( Supplier<T> task ) {
+            return () -> {
+                if ( Thread.currentThread().getId() == threadId ) {
+                    return task.get();
+                }
+                long cpu = cpuTime();
+                long allocated = allocatedBytes();
+                try {
+                    return task.get();
+                } finally {
+                    if ( cpu >= 0 ) {
+                        otherCpuNanos.add( cpuTime() - cpu );
+                    }
+                    if ( allocated >= 0 ) {
+                        otherAllocatedBytes.add( allocatedBytes() - allocated );
+                    }
+                }
+            };
+        }
+
+        private long cpuTime() {
+            return cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime() : -1;
+        }
+
+        private long allocatedBytes() {
+            return allocationMXBean != null
+                    ? allocationMXBean.getThreadAllocatedBytes( Thread.currentThread().getId() ) : -1;
+        }
+    }
+}
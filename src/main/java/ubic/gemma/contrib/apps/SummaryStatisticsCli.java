@@ -18,22 +18,27 @@
  */
 package ubic.gemma.contrib.apps;
 
+import cern.colt.list.LongArrayList;
+import cern.colt.map.OpenLongIntHashMap;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.hibernate.SessionFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import ubic.basecode.dataStructure.matrix.CompressedSparseDoubleMatrix;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 import ubic.gemma.cli.util.AbstractCLI;
 import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
 import ubic.gemma.model.genome.Gene;
 import ubic.gemma.model.genome.Taxon;
-import ubic.gemma.model.genome.biosequence.BioSequence;
 import ubic.gemma.persistence.service.expression.arrayDesign.ArrayDesignService;
 import ubic.gemma.persistence.service.expression.designElement.CompositeSequenceService;
 import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentService;
-import ubic.gemma.persistence.service.genome.gene.GeneService;
 import ubic.gemma.persistence.service.genome.taxon.TaxonService;
 
 import javax.annotation.Nullable;
@@ -41,10 +46,12 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.math.BigInteger;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Computing different statistics about the database to assist in computing probabilities
@@ -54,15 +61,14 @@ import java.util.Map;
  */
 public class SummaryStatisticsCli extends AbstractCLI {
 
-    private static final int MAX_EXPS = 5;
-
-    private static final int MAX_GENES = 100000;
+    /**
+     * Number of probes whose genes are fetched at once.
+     */
+    private static final int GENES_BATCH_SIZE = 5000;
 
     @Autowired
     private ExpressionExperimentService expressionExperimentService;
     @Autowired
-    private GeneService geneService;
-    @Autowired
     private TaxonService taxonService;
     @Autowired
     private CompositeSequenceService compositeSequenceService;
@@ -72,6 +78,66 @@ public class SummaryStatisticsCli extends AbstractCLI {
     private String taxonName;
     private String outFileName;
 
+    /**
+     * Which statistic to compute.
+     */
+    private String statistic = "genesPerProbe";
+
+    @Value("${gemma.appdata.home}")
+    private Path appDataHome;
+
+    /**
+     * Directory of the gene annotation cache, defaults to annotationCache under the application data directory.
+     */
+    private Path annotationCacheDir;
+
+    /**
+     * File the gene sets of experiments are read from, or saved to if it does not exist yet.
+     */
+    private Path geneSetsFile;
+
+    /**
+     * Number of platforms or experiments processed concurrently.
+     */
+    private int numThreads = 1;
+
+    @Service
+    static class HelperService {
+
+        @Autowired
+        private SessionFactory sessionFactory;
+
+        /**
+         * @return the ID and sequence ID of the probes of the platform that have a sequence, in order of probe ID,
+         * without loading them
+         */
+        @Transactional(readOnly = true)
+        public List<Object[]> loadSequenceIds( ArrayDesign design ) {
+            //noinspection unchecked
+            return sessionFactory.getCurrentSession()
+                    .createQuery( "select cs.id, cs.biologicalCharacteristic.id from CompositeSequence cs "
+                            + "where cs.arrayDesign = :design and cs.biologicalCharacteristic is not null "
+                            + "order by cs.id" )
+                    .setParameter( "design", design )
+                    .list();
+        }
+
+        /**
+         * @return the IDs of the genes of the taxon, without loading them
+         */
+        @Transactional(readOnly = true)
+        public List<Long> loadGeneIds( Taxon taxon ) {
+            //noinspection unchecked
+            return sessionFactory.getCurrentSession()
+                    .createQuery( "select g.id from Gene g where g.taxon = :taxon" )
+                    .setParameter( "taxon", taxon )
+                    .list();
+        }
+    }
+
+    @Autowired
+    private HelperService helperService;
+
     @Override
     public String getCommandName() {
         return "summaryStatistics";
@@ -81,6 +147,19 @@ public class SummaryStatisticsCli extends AbstractCLI {
     protected void buildOptions( Options options ) {
         options.addOption( Option.builder( "o" ).hasArg().argName( "outFile" ).desc( "Output file" ).build() );
         options.addOption( Option.builder( "t" ).hasArg().argName( "taxon" ).desc( "Taxon common name (e.g., human)" ).build() );
+        options.addOption( Option.builder( "stat" ).hasArg().argName( "statistic" )
+                .desc( "Statistic to compute: genesPerProbe (default), probesPerGene, geneOccurrence or "
+                        + "genePairOccurrence" ).build() );
+        options.addOption( Option.builder( "annotationCache" ).hasArg().argName( "dir" )
+                .desc( "Directory where probe to gene annotations are cached between runs, for probesPerGene "
+                        + "(default: annotationCache under the application data directory)" ).build() );
+        options.addOption( Option.builder( "geneSets" ).hasArg().argName( "file" )
+                .desc( "File of the gene sets of the experiments, for geneOccurrence and genePairOccurrence; read if it "
+                        + "exists, otherwise written once the sets are collected from the database" ).build() );
+        options.addOption( Option.builder( "threads" ).hasArg().argName( "numThreads" )
+                .desc( "Number of platforms or experiments to process concurrently (default 1); each uses a database "
+                        + "connection" )
+                .build() );
     }
 
     @Override
@@ -91,164 +170,276 @@ public class SummaryStatisticsCli extends AbstractCLI {
         if ( c.hasOption( 'o' ) ) {
             this.outFileName = c.getOptionValue( 'o' );
         }
+        if ( c.hasOption( "stat" ) ) {
+            this.statistic = c.getOptionValue( "stat" );
+            if ( !Arrays.asList( "genesPerProbe", "probesPerGene", "geneOccurrence", "genePairOccurrence" )
+                    .contains( this.statistic ) ) {
+                throw new IllegalArgumentException( "Unknown statistic: " + this.statistic );
+            }
+        }
+        if ( c.hasOption( "annotationCache" ) ) {
+            this.annotationCacheDir = Paths.get( c.getOptionValue( "annotationCache" ) );
+        }
+        if ( c.hasOption( "geneSets" ) ) {
+            this.geneSetsFile = Paths.get( c.getOptionValue( "geneSets" ) );
+        }
+        if ( c.hasOption( "threads" ) ) {
+            this.numThreads = Integer.parseInt( c.getOptionValue( "threads" ) );
+            if ( this.numThreads < 1 ) {
+                throw new IllegalArgumentException( "Number of threads must be at least 1" );
+            }
+        }
     }
 
     @Override
-    protected void doWork() {
+    protected void doWork() throws Exception {
         Taxon taxon = taxonService.findByCommonName( taxonName );
-        genesPerProbe( taxon );
+        switch ( statistic ) {
+            case "genesPerProbe":
+                genesPerProbe( taxon );
+                break;
+            case "probesPerGene":
+                probesPerGene( taxon );
+                break;
+            case "geneOccurrence":
+                geneOccurrenceDistributions( taxon );
+                break;
+            case "genePairOccurrence":
+                genePairOccurrenceDistributions( taxon );
+                break;
+            default:
+                throw new IllegalArgumentException( "Unknown statistic: " + statistic );
+        }
     }
 
     /**
      * For each gene, count how many expression experiments it appears in.
      */
-    private void geneOccurrenceDistributions( Taxon taxon ) {
-
-        Map<Long, Integer> counts = new HashMap<>();
-
-        // get all expression experiments
-
-        Collection<ExpressionExperiment> eeColl = expressionExperimentService.loadAll();
-
-        int i = 0;
-        for ( ExpressionExperiment experiment : eeColl ) {
-            if ( i > MAX_EXPS ) break;
-            Taxon eeTax = expressionExperimentService.getTaxon( experiment );
-            if ( eeTax == null || !eeTax.equals( taxon ) ) continue;
-            Collection<ArrayDesign> ads = expressionExperimentService.getArrayDesignsUsed( experiment );
-
-            // only count each gene once per data set.
-            Collection<Long> seenids = new HashSet<>();
-
-            for ( ArrayDesign design : ads ) {
-                log.info( i + " " + design );
-                Collection<Object[]> vals = compositeSequenceService.getRawSummary( design, -1 );
-                log.info( "Got " + vals.size() + " reports" );
-                for ( Object[] objects : vals ) {
-
-                    BigInteger geneidi = ( BigInteger ) objects[10];
-                    if ( geneidi == null ) {
-                        continue;
-                    }
-                    Long geneid = geneidi.longValue();
+    private void geneOccurrenceDistributions( Taxon taxon ) throws Exception {
+        GeneSets geneSets = getGeneSets( taxon );
+        int[] counts = geneSets.occurrenceCounts();
+        for ( int g = 0; g < counts.length; g++ ) {
+            System.out.println( geneSets.getGeneId( g ) + "\t" + counts[g] );
+        }
+    }
 
-                    if ( seenids.contains( geneid ) ) continue;
+    /**
+     * For each pair of genes, count how many expression experiments both appear in, and print how many pairs there are
+     * for each number of experiments.
+     */
+    private void genePairOccurrenceDistributions( Taxon taxon ) throws Exception {
+        GeneSets geneSets = getGeneSets( taxon );
+        log.info( "Counting the co-occurrences of " + geneSets.getNumGenes() + " genes in "
+                + geneSets.getNumExperiments() + " experiments" );
 
-                    if ( counts.get( geneid ) == null ) {
-                        counts.put( geneid, 0 );
-                    }
-                    counts.put( geneid, counts.get( geneid ) + 1 );
-                    seenids.add( geneid );
-                }
-            }
-            i++;
+        // print the histogram.
+        long[] counts = geneSets.pairOccurrenceHistogram( numThreads );
+        for ( int j = 0; j < counts.length; j++ ) {
+            System.out.println( j + "\t" + counts[j] );
         }
+    }
 
-        for ( Long l : counts.keySet() ) {
-            System.out.println( l + "\t" + counts.get( l ) );
+    /**
+     * Get the gene sets of the experiments of a taxon from the file given with -geneSets if it exists, otherwise from
+     * the database, saving them to that file if one was given.
+     */
+    private GeneSets getGeneSets( Taxon taxon ) throws Exception {
+        if ( geneSetsFile != null && Files.exists( geneSetsFile ) ) {
+            log.info( "Reading gene sets from " + geneSetsFile );
+            return GeneSets.read( geneSetsFile, taxon.getId() );
         }
+        GeneSets geneSets = loadGeneSets( taxon );
+        if ( geneSetsFile != null ) {
+            geneSets.write( geneSetsFile, taxon.getId() );
+            log.info( "Wrote the gene sets of " + geneSets.getNumExperiments() + " experiments to " + geneSetsFile );
+        }
+        return geneSets;
     }
 
     /**
-     * For each pair of genes, count how many expression experiments both appear in.
+     * Collect the genes assayed by each experiment of a taxon, according to the raw summaries of their platforms.
+     * Experiments are processed concurrently, and the genes of each platform are only fetched once.
      */
-    private void genePairOccurrenceDistributions( Taxon taxon ) {
-
+    private GeneSets loadGeneSets( Taxon taxon ) throws Exception {
         Collection<ExpressionExperiment> eeColl = expressionExperimentService.loadAll();
+        Map<Long, long[]> platformGenes = new ConcurrentHashMap<>();
+        AtomicInteger done = new AtomicInteger();
+
+        List<ExpressionExperiment> experiments = new ArrayList<>( eeColl );
+        List<Callable<long[]>> tasks = new ArrayList<>( experiments.size() );
+        for ( ExpressionExperiment experiment : experiments ) {
+            tasks.add( () -> {
+                Taxon eeTax = expressionExperimentService.getTaxon( experiment );
+                if ( eeTax == null || !eeTax.equals( taxon ) ) return null;
+                Collection<ArrayDesign> ads = expressionExperimentService.getArrayDesignsUsed( experiment );
+                long[] genes = new long[0];
+                for ( ArrayDesign design : ads ) {
+                    genes = union( genes, getGeneIds( design, platformGenes ) );
+                }
+                if ( done.incrementAndGet() % 100 == 0 ) {
+                    log.info( "Collected the genes of " + done.get() + " experiments" );
+                }
+                return genes;
+            } );
+        }
+        List<long[]> results = runAll( tasks );
 
-        CompressedSparseDoubleMatrix<Long, Long> mat = new CompressedSparseDoubleMatrix<>( MAX_GENES,
-                MAX_GENES );
-
-        int numEEs = 0;
-        for ( ExpressionExperiment experiment : eeColl ) {
-            if ( numEEs > MAX_EXPS ) break;
-            Taxon eeTax = expressionExperimentService.getTaxon( experiment );
-            if ( eeTax == null || !eeTax.equals( taxon ) ) continue;
-            Collection<ArrayDesign> ads = expressionExperimentService.getArrayDesignsUsed( experiment );
-
-            // only count each gene once per data set.
-            Collection<Long> seenids = new HashSet<>();
-
-            for ( ArrayDesign design : ads ) {
-
-                Collection<Object[]> vals = compositeSequenceService.getRawSummary( design, -1 );
-                log.info( numEEs + " " + design + "Got " + vals.size() + " reports" );
-
-                for ( Object[] objects : vals ) {
-
-                    BigInteger geneidi = ( BigInteger ) objects[10];
-                    if ( geneidi == null ) {
-                        continue;
-                    }
-                    Long geneid = geneidi.longValue();
-
-                    if ( seenids.contains( geneid ) ) continue;
-
-                    if ( !mat.containsRowName( geneid ) ) {
-                        mat.addRowName( geneid );
-                    }
-
-                    int outerIndex = mat.getRowIndexByName( geneid );
-
-                    int j = 0;
-                    for ( Object[] ojbB : vals ) {
-
-                        BigInteger geneBidi = ( BigInteger ) ojbB[10];
-                        if ( geneBidi == null || geneBidi.equals( geneidi ) ) {
-                            continue;
-                        }
-                        Long geneBid = geneBidi.longValue();
-                        if ( seenids.contains( geneBid ) ) continue;
-                        int innerIndex;
-                        if ( !mat.containsColumnName( geneBid ) ) {
-                            mat.addColumnName( geneBid );
-                            innerIndex = mat.getColIndexByName( geneBid );
-                            mat.set( outerIndex, innerIndex, 0.0 ); // initialize
-                        }
-
-                        innerIndex = mat.getColIndexByName( geneBid );
-                        mat.set( outerIndex, innerIndex, mat.get( outerIndex, innerIndex ) + 1 );
-
-                        if ( mat.columns() > MAX_GENES ) {
-                            log.warn( "Too many genes!" );
-                            break;
-                        }
-                        j++;
-                        if ( j > 1000 ) break;
-                    }
-                    seenids.add( geneid );
-
-                    if ( mat.rows() > MAX_GENES ) {
-                        break;
-                    }
+        Map<Long, long[]> geneSets = new HashMap<>();
+        for ( int i = 0; i < experiments.size(); i++ ) {
+            if ( results.get( i ) != null ) {
+                geneSets.put( experiments.get( i ).getId(), results.get( i ) );
+            }
+        }
+        return GeneSets.of( geneSets );
+    }
 
-                }
+    /**
+     * @param cache genes of the platforms already fetched, by platform ID; updated
+     * @return the sorted IDs of the genes of a platform
+     */
+    private long[] getGeneIds( ArrayDesign design, Map<Long, long[]> cache ) {
+        long[] genes = cache.get( design.getId() );
+        if ( genes == null ) {
+            // two threads may fetch the same platform, which is harmless
+            genes = geneIds( compositeSequenceService.getRawSummary( design, -1 ) );
+            cache.put( design.getId(), genes );
+        }
+        return genes;
+    }
 
+    /**
+     * @param rawSummary as returned by {@link CompositeSequenceService#getRawSummary(ArrayDesign, int)}
+     * @return the sorted IDs of the genes listed in the raw summary of a platform
+     */
+    static long[] geneIds( Collection<Object[]> rawSummary ) {
+        long[] ids = new long[rawSummary.size()];
+        int n = 0;
+        for ( Object[] objects : rawSummary ) {
+            BigInteger geneidi = ( BigInteger ) objects[10];
+            if ( geneidi != null ) {
+                ids[n++] = geneidi.longValue();
             }
-            numEEs++;
         }
+        return Arrays.stream( ids, 0, n ).sorted().distinct().toArray();
+    }
 
-        // print the histogram.
-        int[] counts = new int[MAX_EXPS + 1];
-        for ( Long outer : mat.getRowNames() ) {
-            double[] row = mat.getRowByName( outer );
-            for ( double d : row ) {
-                counts[( int ) d]++;
+    /**
+     * @return the union of two sorted arrays of distinct values, also sorted
+     */
+    private static long[] union( long[] a, long[] b ) {
+        long[] result = new long[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while ( i < a.length && j < b.length ) {
+            if ( a[i] < b[j] ) {
+                result[n++] = a[i++];
+            } else if ( a[i] > b[j] ) {
+                result[n++] = b[j++];
+            } else {
+                result[n++] = a[i++];
+                j++;
             }
         }
+        while ( i < a.length ) result[n++] = a[i++];
+        while ( j < b.length ) result[n++] = b[j++];
+        return n == result.length ? result : Arrays.copyOf( result, n );
+    }
 
-        for ( int j = 0; j < counts.length; j++ ) {
-            System.out.println( j + "\t" + counts[j] );
+    /**
+     * Run tasks on up to {@link #numThreads} threads.
+     *
+     * @return the results, in the order of the tasks
+     */
+    private <T> List<T> runAll( List<Callable<T>> tasks ) throws Exception {
+        List<T> results = new ArrayList<>( tasks.size() );
+        if ( numThreads == 1 ) {
+            for ( Callable<T> task : tasks ) {
+                results.add( task.call() );
+            }
+            return results;
+        }
+        // workers need the authentication of the thread running the CLI
+        ExecutorService executor = new DelegatingSecurityContextExecutorService( Executors.newFixedThreadPool( numThreads,
+                new BasicThreadFactory.Builder().namingPattern( "summaryStatistics-%d" ).build() ) );
+        try {
+            List<Future<T>> futures = new ArrayList<>( tasks.size() );
+            for ( Callable<T> task : tasks ) {
+                futures.add( executor.submit( task ) );
+            }
+            for ( Future<T> future : futures ) {
+                results.add( future.get() );
+            }
+            return results;
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof Exception ) {
+                throw ( Exception ) e.getCause();
+            }
+            throw e;
+        } finally {
+            executor.shutdownNow();
         }
     }
 
     /**
-     * For each composites sequence, count how many genes there are. This does not take into account multiple occurrence
-     * os the same sequence in different probes!
+     * For each composites sequence, count how many genes there are. Each sequence is only counted once, for the first
+     * platform it is found on in order of ID, so that the result does not depend on the number of threads.
      *
      * @param taxon
      */
-    public void genesPerProbe( Taxon taxon ) {
+    public void genesPerProbe( Taxon taxon ) throws Exception {
+        List<ArrayDesign> platforms = new ArrayList<>( getPlatforms( taxon ) );
+        platforms.sort( Comparator.comparing( ArrayDesign::getId ) );
+
+        List<long[]> ownedProbes = assignSequences( platforms );
+
+        AtomicInteger count = new AtomicInteger();
+        List<Callable<int[]>> tasks = new ArrayList<>( platforms.size() );
+        for ( int i = 0; i < platforms.size(); i++ ) {
+            ArrayDesign design = platforms.get( i );
+            long[] probeIds = ownedProbes.get( i );
+            tasks.add( () -> {
+                log.info( design + " : " + count.incrementAndGet() + " of " + platforms.size() );
+                return genesPerProbe( design, probeIds );
+            } );
+        }
+        List<int[]> histograms = runAll( tasks );
+
+        // merge the histograms, in order of platform
+        Map<ArrayDesign, int[]> countMap = new LinkedHashMap<>();
+        for ( int i = 0; i < platforms.size(); i++ ) {
+            countMap.put( platforms.get( i ), histograms.get( i ) );
+        }
+
+        printGenesPerProbeCountMap( countMap );
+    }
+
+    /**
+     * Assign each sequence to its first probe, on the first platform it is found on. The platforms are read one at a
+     * time, so that only the IDs of the sequences seen so far are kept.
+     *
+     * @return for each platform, the IDs of the probes whose sequence is assigned to them
+     */
+    private List<long[]> assignSequences( List<ArrayDesign> platforms ) {
+        OpenLongIntHashMap owners = new OpenLongIntHashMap();
+        List<long[]> ownedProbes = new ArrayList<>( platforms.size() );
+        for ( int i = 0; i < platforms.size(); i++ ) {
+            LongArrayList owned = new LongArrayList();
+            for ( Object[] row : helperService.loadSequenceIds( platforms.get( i ) ) ) {
+                long bsId = ( Long ) row[1];
+                if ( !owners.containsKey( bsId ) ) {
+                    owners.put( bsId, i );
+                    owned.add( ( Long ) row[0] );
+                }
+            }
+            owned.trimToSize();
+            ownedProbes.add( owned.elements() );
+        }
+        return ownedProbes;
+    }
+
+    /**
+     * @return the platforms whose primary taxon is the given one
+     */
+    private Collection<ArrayDesign> getPlatforms( Taxon taxon ) {
         Collection<ArrayDesign> allAds = adService.loadAll();
         Collection<ArrayDesign> ads = new HashSet<>();
         for ( ArrayDesign ad : allAds ) {
@@ -257,76 +448,101 @@ public class SummaryStatisticsCli extends AbstractCLI {
                 ads.add( ad );
             }
         }
+        return ads;
+    }
 
-        Map<ArrayDesign, Map<Integer, Integer>> countMap = new HashMap<>();
-        Collection<Long> seenSeqs = new HashSet<>();
-        int count = 0;
-        for ( ArrayDesign design : ads ) {
-            log.info( design + " : " + ++count + " of " + ads.size() );
-            adService.thawLite( design );
-            Map<Integer, Integer> counts = new HashMap<>();
-
-            int i = 0;
-            for ( CompositeSequence cs : design.getCompositeSequences() ) {
-
-                BioSequence bs = cs.getBiologicalCharacteristic();
-
-                if ( bs == null ) continue; // these don't count.
-
-                if ( seenSeqs.contains( bs ) ) continue;
-
-                Integer numGenes = 0;
-                Collection<Gene> genes = compositeSequenceService.getGenes( cs );
-
-                if ( genes == null )
-                    numGenes = 0;
-                else
-                    numGenes = genes.size();
-
-                if ( !counts.containsKey( numGenes ) ) {
-                    counts.put( numGenes, 1 );
-                } else {
-                    counts.put( numGenes, counts.get( numGenes ) + 1 );
-                }
-                if ( ++i % 1000 == 0 ) {
-                    log.info( "Processed " + i + " compositeSequences" );
-                }
-
-                seenSeqs.add( bs.getId() );
+    /**
+     * Count the genes of the given probes of a platform.
+     *
+     * @param probeIds IDs of the probes counted
+     * @return number of probes for each number of genes
+     */
+    private int[] genesPerProbe( ArrayDesign design, long[] probeIds ) {
+        int[] counts = new int[1];
+        List<Long> batchIds = new ArrayList<>( GENES_BATCH_SIZE );
+        for ( int i = 0; i < probeIds.length; i += GENES_BATCH_SIZE ) {
+            batchIds.clear();
+            for ( int j = i; j < Math.min( i + GENES_BATCH_SIZE, probeIds.length ); j++ ) {
+                batchIds.add( probeIds[j] );
             }
-            countMap.put( design, counts );
-
+            Collection<CompositeSequence> batch = compositeSequenceService.load( batchIds );
+            counts = countGenesPerProbe( batch, compositeSequenceService.getGenes( batch ), counts );
+            log.info( design.getShortName() + ": processed " + ( i + batchIds.size() ) + " compositeSequences" );
         }
+        return counts;
+    }
 
-        try {
-            printGenesPerProbeCountMap( countMap );
-        } catch ( IOException e ) {
-            e.printStackTrace();
+    /**
+     * Add the number of genes of each probe to a histogram.
+     *
+     * @param genes  genes of the probes; probes that are missing count as having no gene
+     * @param counts number of probes for each number of genes; updated, or replaced by a larger copy if needed
+     * @return the updated histogram
+     */
+    static int[] countGenesPerProbe( Collection<CompositeSequence> probes, Map<CompositeSequence, Collection<Gene>> genes,
+            int[] counts ) {
+        for ( CompositeSequence cs : probes ) {
+            Collection<Gene> g = genes.get( cs );
+            int numGenes = g == null ? 0 : g.size();
+            if ( numGenes >= counts.length ) {
+                counts = Arrays.copyOf( counts, Math.max( numGenes + 1, 2 * counts.length ) );
+            }
+            counts[numGenes]++;
         }
+        return counts;
     }
 
     /**
-     * For each gene, count how many microarray probes there are.
+     * For each gene, count how many microarray probes there are, over the platforms of the taxon. The annotations of the
+     * platforms are obtained from the gene annotation cache, so only the platforms that are not cached yet or have
+     * changed need to be queried.
      *
      * @param taxon
      */
-    private void probesPerGene( Taxon taxon ) {
-        Collection<Gene> genes = geneService.loadAll( taxon );
-        Map<Long, Integer> counts = new HashMap<>();
-        int i = 0;
-        for ( Gene gene : genes ) {
-            Collection<CompositeSequence> compositeSequences = geneService.getCompositeSequencesById( gene.getId() );
-            counts.put( gene.getId(), compositeSequences.size() );
-            if ( ++i % 1000 == 0 ) {
-                log.info( "Processed " + i + " genes" );
-            }
+    private void probesPerGene( Taxon taxon ) throws Exception {
+        GeneAnnotationCache annotationCache = new GeneAnnotationCache(
+                annotationCacheDir != null ? annotationCacheDir : appDataHome.resolve( "annotationCache" ),
+                // each platform is only used once
+                1, adService, compositeSequenceService );
+
+        // genes without any probe are reported too
+        OpenLongIntHashMap counts = new OpenLongIntHashMap();
+        for ( Long geneId : helperService.loadGeneIds( taxon ) ) {
+            counts.put( geneId, 0 );
         }
-        for ( Long l : counts.keySet() ) {
+
+        List<ArrayDesign> platforms = new ArrayList<>( getPlatforms( taxon ) );
+        AtomicInteger done = new AtomicInteger();
+        List<Callable<Void>> tasks = new ArrayList<>( platforms.size() );
+        for ( ArrayDesign design : platforms ) {
+            tasks.add( () -> {
+                GeneAnnotationCache.PlatformAnnotations pa = annotationCache.get( design );
+                synchronized ( counts ) {
+                    for ( int p = 0; p < pa.size(); p++ ) {
+                        for ( int k = 0; k < pa.getNumGenes( p ); k++ ) {
+                            long geneId = pa.getGeneId( p, k );
+                            // genes of other taxa are ignored
+                            if ( counts.containsKey( geneId ) ) {
+                                counts.put( geneId, counts.get( geneId ) + 1 );
+                            }
+                        }
+                    }
+                }
+                log.info( design + " : " + done.incrementAndGet() + " of " + platforms.size() );
+                return null;
+            } );
+        }
+        runAll( tasks );
+
+        LongArrayList geneIds = counts.keys();
+        geneIds.sort();
+        for ( int i = 0; i < geneIds.size(); i++ ) {
+            long l = geneIds.getQuick( i );
             System.out.println( l + "\t" + counts.get( l ) );
         }
     }
 
-    private void printGenesPerProbeCountMap( Map<ArrayDesign, Map<Integer, Integer>> countMap ) throws IOException {
+    private void printGenesPerProbeCountMap( Map<ArrayDesign, int[]> countMap ) throws IOException {
         PrintWriter out;
         if ( outFileName == null ) {
             out = new PrintWriter( System.out );
@@ -336,32 +552,27 @@ public class SummaryStatisticsCli extends AbstractCLI {
 
         // get max number of genes
         int maxNumGenes = 0;
-        for ( Map<Integer, Integer> counts : countMap.values() ) {
-            for ( Integer n : counts.keySet() ) {
-                int count = counts.get( n );
-                if ( count > 0 && n > maxNumGenes ) maxNumGenes = n;
+        for ( int[] counts : countMap.values() ) {
+            for ( int n = counts.length - 1; n > maxNumGenes; n-- ) {
+                if ( counts[n] > 0 ) {
+                    maxNumGenes = n;
+                    break;
+                }
             }
         }
 
-        StringBuffer buf = new StringBuffer( "Count\t" );
+        StringBuilder buf = new StringBuilder( "Count" );
         for ( ArrayDesign ad : countMap.keySet() ) {
-            buf.append( ad.getShortName() + "\t" );
+            buf.append( "\t" ).append( ad.getShortName() );
         }
-        buf.deleteCharAt( buf.length() - 1 );
         out.println( buf );
 
         for ( int numGenes = 0; numGenes <= maxNumGenes; numGenes++ ) {
-            buf = new StringBuffer();
-            buf.append( numGenes + "\t" );
-            for ( ArrayDesign ad : countMap.keySet() ) {
-                Map<Integer, Integer> counts = countMap.get( ad );
-                if ( counts.get( numGenes ) != null )
-                    buf.append( counts.get( numGenes ) );
-                else
-                    buf.append( "0" );
-                buf.append( "\t" );
+            buf.setLength( 0 );
+            buf.append( numGenes );
+            for ( int[] counts : countMap.values() ) {
+                buf.append( "\t" ).append( numGenes < counts.length ? counts[numGenes] : 0 );
             }
-            buf.deleteCharAt( buf.length() - 1 );
             out.println( buf );
         }
         out.close();
@@ -0,0 +1,89 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package ubic.gemma.contrib.apps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the features of ontology terms, given as bits of an int, so that looking up all the features of a term URI
+ * costs a single hash lookup.
+ * <p>
+ * Features come from sets of known terms and from substrings of the URI, such as {@code CHEBI_}; the features of a
+ * URI are computed the first time it is looked up and kept for the subsequent lookups.
+ * <p>
+ * Terms and substrings must all be added before the first lookup; after that, this is thread-safe.
+ */
+class TermIndex {
+
+    private final Map<String, Integer> terms = new HashMap<>();
+    private final List<String> substrings = new ArrayList<>();
+    private final List<Integer> substringFeatures = new ArrayList<>();
+
+    private final Map<String, Integer> features = new ConcurrentHashMap<>();
+
+    /**
+     * Give a feature to each of the given terms.
+     */
+    TermIndex add( int feature, Collection<String> uris ) {
+        for ( String uri : uris ) {
+            terms.merge( uri, feature, ( a, b ) -> a | b );
+        }
+        return this;
+    }
+
+    /**
+     * Give a feature to each term whose URI contains the given string.
+     */
+    TermIndex addSubstring( int feature, String substring ) {
+        substrings.add( substring );
+        substringFeatures.add( feature );
+        return this;
+    }
+
+    /**
+     * @return the features of the term, or 0 if it has none
+     */
+    int features( String uri ) {
+        Integer f = features.get( uri );
+        if ( f == null ) {
+            f = terms.getOrDefault( uri, 0 );
+            for ( int i = 0; i < substrings.size(); i++ ) {
+                if ( uri.contains( substrings.get( i ) ) ) {
+                    f |= substringFeatures.get( i );
+                }
+            }
+            features.putIfAbsent( uri, f );
+        }
+        return f;
+    }
+
+    /**
+     * @return true if the term has the given feature
+     */
+    boolean has( String uri, int feature ) {
+        return uri != null && ( features( uri ) & feature ) != 0;
+    }
+}
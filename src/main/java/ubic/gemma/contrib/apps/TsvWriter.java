@@ -0,0 +1,360 @@
+/*
+ * The GemmaAnalysis project
+ *
+ * Copyright (c) 2026 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubic.gemma.contrib.apps;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Buffered writer for tab-delimited files with many numeric fields.
+ * <p>
+ * Fields are encoded straight into a byte buffer. Doubles are written exactly as {@code String.format( "%.4g", v )}
+ * would (with the root locale), but without going through {@link java.util.Formatter}, which dominates the time needed
+ * to write large detail files. Rounding ties are delegated to {@link String#format} since it rounds the shortest
+ * decimal representation of the value half-up, which cannot be decided from the binary value alone.
+ * <p>
+ * This is not thread-safe.
+ */
+class TsvWriter implements Closeable, Flushable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Largest number of significant digits that fits in a long after scaling.
+     */
+    private static final int MAX_PRECISION = 15;
+
+    /**
+     * Exact powers of ten for scaling; values too small or too large for two of these are delegated to
+     * {@link String#format}.
+     */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for ( int i = 1; i < POWERS_OF_TEN.length; i++ ) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+        }
+    }
+
+    /**
+     * Relative distance from one half of the last digit under which a value is considered a rounding tie. This is well
+     * above the error of scaling by up to two powers of ten.
+     */
+    private static final double TIE_TOLERANCE = 1e-13;
+
+    private final OutputStream out;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+
+    private final int precision;
+    private final long minScaled;
+    private final long maxScaled;
+    private final String fallbackFormat;
+
+    /**
+     * Scratch space for the digits of a number.
+     */
+    private final byte[] digits = new byte[20];
+
+    private boolean startOfRow = true;
+
+    /**
+     * Create a writer that formats doubles with four significant digits.
+     */
+    TsvWriter( OutputStream out ) {
+        this( out, 4 );
+    }
+
+    /**
+     * @param precision number of significant digits for doubles, as in {@code %.<precision>g}
+     */
+    TsvWriter( OutputStream out, int precision ) {
+        if ( precision < 1 || precision > MAX_PRECISION ) {
+            throw new IllegalArgumentException( "Precision must be between 1 and " + MAX_PRECISION );
+        }
+        this.out = out;
+        this.precision = precision;
+        this.minScaled = ( long ) POWERS_OF_TEN[precision - 1];
+        this.maxScaled = ( long ) POWERS_OF_TEN[precision];
+        this.fallbackFormat = "%." + precision + "g";
+    }
+
+    TsvWriter( File file ) throws IOException {
+        this( new FileOutputStream( file ) );
+    }
+
+    /**
+     * Write a field; null is written as "null".
+     */
+    TsvWriter field( String s ) throws IOException {
+        separate();
+        writeString( s == null ? "null" : s );
+        return this;
+    }
+
+    TsvWriter field( long v ) throws IOException {
+        separate();
+        writeLong( v );
+        return this;
+    }
+
+    /**
+     * Write a field; null is written as "null".
+     */
+    TsvWriter field( Long v ) throws IOException {
+        return v == null ? field( ( String ) null ) : field( v.longValue() );
+    }
+
+    /**
+     * Write a double with the configured number of significant digits.
+     */
+    TsvWriter field( double v ) throws IOException {
+        separate();
+        writeDouble( v );
+        return this;
+    }
+
+    /**
+     * Terminate the current row.
+     */
+    void endRow() throws IOException {
+        ensure( 1 );
+        buf[pos++] = '\n';
+        startOfRow = true;
+    }
+
+    /**
+     * Write a complete line, such as a header, as is.
+     */
+    void writeLine( String line ) throws IOException {
+        if ( !startOfRow ) {
+            throw new IllegalStateException( "The current row must be ended first." );
+        }
+        writeString( line );
+        endRow();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void separate() throws IOException {
+        if ( startOfRow ) {
+            startOfRow = false;
+        } else {
+            ensure( 1 );
+            buf[pos++] = '\t';
+        }
+    }
+
+    private void writeString( String s ) throws IOException {
+        int n = s.length();
+        for ( int i = 0; i < n; i++ ) {
+            char c = s.charAt( i );
+            if ( c >= 0x80 ) {
+                // not plain ASCII, let the encoder deal with it
+                writeBytes( s.substring( i ).getBytes( StandardCharsets.UTF_8 ) );
+                return;
+            }
+            ensure( 1 );
+            buf[pos++] = ( byte ) c;
+        }
+    }
+
+    private void writeBytes( byte[] b ) throws IOException {
+        if ( b.length > buf.length ) {
+            drain();
+            out.write( b );
+            return;
+        }
+        ensure( b.length );
+        System.arraycopy( b, 0, buf, pos, b.length );
+        pos += b.length;
+    }
+
+    private void writeLong( long v ) throws IOException {
+        if ( v == Long.MIN_VALUE ) {
+            writeString( Long.toString( v ) );
+            return;
+        }
+        ensure( 20 );
+        if ( v < 0 ) {
+            buf[pos++] = '-';
+            v = -v;
+        }
+        int n = 0;
+        do {
+            digits[n++] = ( byte ) ( '0' + ( v % 10 ) );
+            v /= 10;
+        } while ( v > 0 );
+        while ( n > 0 ) {
+            buf[pos++] = digits[--n];
+        }
+    }
+
+    private void writeDouble( double v ) throws IOException {
+        if ( Double.isNaN( v ) ) {
+            writeString( "NaN" );
+            return;
+        }
+        if ( Double.isInfinite( v ) ) {
+            writeString( v > 0 ? "Infinity" : "-Infinity" );
+            return;
+        }
+
+        ensure( precision + 16 );
+
+        boolean negative = v < 0 || ( v == 0.0 && 1.0 / v < 0 );
+        double a = Math.abs( v );
+
+        long mantissa;
+        int exponent;
+        if ( a == 0.0 ) {
+            mantissa = 0;
+            exponent = 0;
+        } else {
+            exponent = ( int ) Math.floor( Math.log10( a ) );
+            double scaled = scale( a, precision - 1 - exponent );
+            if ( Double.isNaN( scaled ) ) {
+                fallback( v );
+                return;
+            }
+            // log10 can be off by one right next to a power of ten
+            if ( scaled >= maxScaled ) {
+                exponent++;
+                scaled = scale( a, precision - 1 - exponent );
+            } else if ( scaled < minScaled ) {
+                exponent--;
+                scaled = scale( a, precision - 1 - exponent );
+            }
+            if ( Double.isNaN( scaled ) || scaled < minScaled || scaled >= maxScaled ) {
+                fallback( v );
+                return;
+            }
+            mantissa = ( long ) scaled;
+            double frac = scaled - mantissa;
+            if ( Math.abs( frac - 0.5 ) < TIE_TOLERANCE * scaled ) {
+                fallback( v );
+                return;
+            }
+            if ( frac > 0.5 ) {
+                mantissa++;
+                if ( mantissa == maxScaled ) {
+                    mantissa = minScaled;
+                    exponent++;
+                }
+            }
+        }
+
+        // extract the significant digits
+        for ( int i = precision - 1; i >= 0; i-- ) {
+            digits[i] = ( byte ) ( '0' + ( mantissa % 10 ) );
+            mantissa /= 10;
+        }
+
+        if ( negative ) {
+            buf[pos++] = '-';
+        }
+
+        if ( exponent >= -4 && exponent < precision ) {
+            // fixed notation
+            if ( exponent >= 0 ) {
+                for ( int i = 0; i < precision; i++ ) {
+                    if ( i == exponent + 1 ) {
+                        buf[pos++] = '.';
+                    }
+                    buf[pos++] = digits[i];
+                }
+            } else {
+                buf[pos++] = '0';
+                buf[pos++] = '.';
+                for ( int i = 0; i < -exponent - 1; i++ ) {
+                    buf[pos++] = '0';
+                }
+                for ( int i = 0; i < precision; i++ ) {
+                    buf[pos++] = digits[i];
+                }
+            }
+        } else {
+            // scientific notation, with at least two digits for the exponent
+            buf[pos++] = digits[0];
+            if ( precision > 1 ) {
+                buf[pos++] = '.';
+                for ( int i = 1; i < precision; i++ ) {
+                    buf[pos++] = digits[i];
+                }
+            }
+            buf[pos++] = 'e';
+            buf[pos++] = ( byte ) ( exponent < 0 ? '-' : '+' );
+            int e = Math.abs( exponent );
+            if ( e >= 100 ) {
+                buf[pos++] = ( byte ) ( '0' + e / 100 );
+                e %= 100;
+            }
+            buf[pos++] = ( byte ) ( '0' + e / 10 );
+            buf[pos++] = ( byte ) ( '0' + e % 10 );
+        }
+    }
+
+    /**
+     * @return a * 10^k, or NaN if it cannot be computed with at most two exactly-represented powers of ten
+     */
+    private static double scale( double a, int k ) {
+        int n = POWERS_OF_TEN.length - 1;
+        if ( k >= 0 ) {
+            if ( k <= n ) return a * POWERS_OF_TEN[k];
+            if ( k <= 2 * n ) return a * POWERS_OF_TEN[n] * POWERS_OF_TEN[k - n];
+        } else {
+            if ( -k <= n ) return a / POWERS_OF_TEN[-k];
+            if ( -k <= 2 * n ) return a / POWERS_OF_TEN[n] / POWERS_OF_TEN[-k - n];
+        }
+        return Double.NaN;
+    }
+
+    private void fallback( double v ) throws IOException {
+        writeString( String.format( Locale.ROOT, fallbackFormat, v ) );
+    }
+
+    private void ensure( int n ) throws IOException {
+        if ( pos + n > buf.length ) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        if ( pos > 0 ) {
+            out.write( buf, 0, pos );
+            pos = 0;
+        }
+    }
+}